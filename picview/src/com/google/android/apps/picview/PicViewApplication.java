@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview;
+
+import android.app.Application;
+
+import com.google.android.apps.picview.data.CacheBudget;
+
+/**
+ * Sets up the application wide state, before any activity is started.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class PicViewApplication extends Application {
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    CacheBudget.apply(this);
+  }
+}
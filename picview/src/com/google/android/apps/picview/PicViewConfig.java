@@ -26,6 +26,84 @@ public class PicViewConfig {
   /** The size of the album thumbnails (in dp). */
   public static int ALBUM_THUMBNAIL_SIZE = 140;
 
+  /**
+   * The in-memory image cache gets this fraction (1/n) of the memory class of
+   * the device.
+   */
+  public static final int MEMORY_CACHE_FRACTION = 8;
+
+  /**
+   * The pool of reusable bitmaps gets this fraction (1/n) of the maximum heap
+   * size.
+   */
+  public static final int BITMAP_POOL_FRACTION = 16;
+
+  /**
+   * The cache of web responses gets this fraction (1/n) of the cache size
+   * configured in the preferences. The photos get the rest.
+   */
+  public static final int RESPONSE_CACHE_FRACTION = 10;
+
+  /**
+   * The number of thumbnail rows ahead of the visible ones, in scroll
+   * direction, that are prefetched.
+   */
+  public static final int THUMBNAIL_PREFETCH_ROWS = 3;
+
+  /** The number of photos prefetched in the direction the user is paging. */
+  public static final int PHOTO_PREFETCH_AHEAD = 3;
+
+  /** The number of photos prefetched against the paging direction. */
+  public static final int PHOTO_PREFETCH_BEHIND = 1;
+
+  /**
+   * The prefetched full-screen photos may take up this fraction (1/n) of the
+   * in-memory image cache.
+   */
+  public static final int PHOTO_PREFETCH_CACHE_FRACTION = 2;
+
+  /** The time to wait for an HTTP connection to be established (in ms). */
+  public static final int HTTP_CONNECT_TIMEOUT = 15000;
+
+  /** The time to wait for data while reading an HTTP response (in ms). */
+  public static final int HTTP_READ_TIMEOUT = 30000;
+
+  /** The maximum number of concurrent HTTP requests to a single host. */
+  public static final int HTTP_MAX_CONNECTIONS_PER_HOST = 4;
+
+  /**
+   * While a feed is parsed, its entries are shown in batches of this size, so
+   * the first thumbnails appear before the whole feed has arrived.
+   */
+  public static final int FEED_BATCH_SIZE = 12;
+
+  /**
+   * Feeds are requested in pages of this many entries. Further pages are
+   * requested once the user scrolls towards the end of the loaded ones.
+   */
+  public static final int FEED_PAGE_SIZE = 100;
+
+  /**
+   * Validators of cached responses are written in batches, at the latest this
+   * long (in ms) after the first one of a batch was queued.
+   */
+  public static final int WRITE_BEHIND_DELAY = 1000;
+
+  /**
+   * Debug mode: Disk and network access in the fetch path is logged with a
+   * stack trace, if it happens on the main thread.
+   */
+  public static final boolean FLAG_MAIN_THREAD_ACCESS = false;
+
+  /**
+   * The number of parsed responses, e.g. pages of a feed, that are kept in
+   * memory.
+   */
+  public static final int PARSED_RESPONSE_CACHE_SIZE = 20;
+
+  /** The number of worker threads that load images. */
+  public static final int IMAGE_REQUEST_THREADS = 3;
+
   /** Used for storing files on the file system as a directory. */
   public static final String APP_NAME_PATH = "picview";
 
@@ -33,15 +33,18 @@ import android.widget.ListView;
 
 import com.google.android.apps.picview.R;
 import com.google.android.apps.picview.adapter.AlbumsAdapter;
+import com.google.android.apps.picview.adapter.MultiColumnImageAdapter;
+import com.google.android.apps.picview.adapter.MultiColumnImageAdapter.NearEndListener;
 import com.google.android.apps.picview.adapter.MultiColumnImageAdapter.ThumbnailClickListener;
 import com.google.android.apps.picview.data.Album;
 import com.google.android.apps.picview.data.FileSystemImageCache;
 import com.google.android.apps.picview.data.FileSystemWebResponseCache;
-import com.google.android.apps.picview.data.Photo;
-import com.google.android.apps.picview.request.AsyncRequestTask;
-import com.google.android.apps.picview.request.AsyncRequestTask.RequestCallback;
+import com.google.android.apps.picview.data.ImageMemoryCache;
+import com.google.android.apps.picview.data.WriteBehindQueue;
 import com.google.android.apps.picview.request.CachedImageFetcher;
 import com.google.android.apps.picview.request.CachedWebRequestFetcher;
+import com.google.android.apps.picview.request.PagedFeedLoader;
+import com.google.android.apps.picview.request.PicasaAlbumsFeed;
 import com.google.android.apps.picview.request.PicasaAlbumsUrl;
 import com.google.android.apps.picview.ui.ThumbnailItem;
 
@@ -56,6 +59,8 @@ import com.google.android.apps.picview.ui.ThumbnailItem;
 public class AlbumListActivity extends Activity {
   private static final String TAG = AlbumListActivity.class.getSimpleName();
 
+  private static final PicasaAlbumsFeed ALBUMS_FEED = new PicasaAlbumsFeed();
+
   private static class SavedConfiguration {
     public final List<Album> albums;
     public final CachedImageFetcher cachedImageFetcher;
@@ -72,6 +77,7 @@ public class AlbumListActivity extends Activity {
   private List<Album> albums = new ArrayList<Album>();
   private CachedImageFetcher cachedImageFetcher;
   private CachedWebRequestFetcher cachedWebRequestFetcher;
+  private PagedFeedLoader<Album> albumsLoader;
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
@@ -83,7 +89,8 @@ public class AlbumListActivity extends Activity {
     mainList = (ListView) findViewById(R.id.albumlist);
     inflater = LayoutInflater.from(this);
 
-    cachedImageFetcher = new CachedImageFetcher(new FileSystemImageCache());
+    cachedImageFetcher = new CachedImageFetcher(new FileSystemImageCache(),
+        ImageMemoryCache.get(this));
     cachedWebRequestFetcher = new CachedWebRequestFetcher(
         new FileSystemWebResponseCache());
 
@@ -108,49 +115,54 @@ public class AlbumListActivity extends Activity {
   }
 
   /**
-   * Loads the albums for the given user.
+   * Loads the albums for the given user. The first page is loaded right away,
+   * the others as the user scrolls towards the end of the list.
    * 
    * TODO: This is Picasa specific.
    */
   private void doAlbumsRequest(String userName) {
     // Use text field value.
-    PicasaAlbumsUrl url = new PicasaAlbumsUrl(userName);
-    AsyncRequestTask request = new AsyncRequestTask(cachedWebRequestFetcher,
-        url.getUrl(), false, "Loading albums...", this,
-        new RequestCallback() {
-          @Override
-          public void success(String data) {
-            AlbumListActivity.this.albums = Album.parseFromPicasaXml(data);
-            Log.d(TAG, "Albums loaded: " + AlbumListActivity.this.albums.size());
-            showAlbums();
-          }
+    PicasaAlbumsUrl url = new PicasaAlbumsUrl(userName,
+        MultiColumnImageAdapter.getThumbnailSize(getResources()
+            .getDisplayMetrics()));
+    albumsLoader = new PagedFeedLoader<Album>(cachedWebRequestFetcher, url,
+        ALBUMS_FEED, "Loading albums...", this,
+        new PagedFeedLoader.Listener<Album>() {
+          private boolean showing = false;
 
           @Override
-          public void error(String message) {
-            Log.e(TAG, "Could not load albums: " + message);
-            showError("Error while fetching albums");
+          public void entriesAdded(List<Album> part) {
+            // The first albums are shown right away, the rest is appended
+            // while the feed is still being parsed.
+            if (!showing) {
+              showing = true;
+              AlbumListActivity.this.albums = new ArrayList<Album>(part);
+              showAlbums();
+            } else {
+              appendAlbums(part);
+            }
           }
-        });
-    request.execute();
-  }
-
-  private void doPhotosRequest(final String albumTitle, String gdataUrl) {
-    AsyncRequestTask request = new AsyncRequestTask(cachedWebRequestFetcher,
-        gdataUrl, false, "Loading photos...", this,
-        new RequestCallback() {
 
           @Override
-          public void success(String data) {
-            showPhotos(albumTitle, Photo.parseFromPicasaXml(data));
+          public void entriesReplaced(int position, int removed,
+              List<Album> added) {
+            // A page loaded from the cache arrives as a whole.
+            if (!showing) {
+              showing = true;
+              AlbumListActivity.this.albums = new ArrayList<Album>(added);
+              showAlbums();
+            } else {
+              replaceAlbums(position, removed, added);
+            }
           }
 
           @Override
           public void error(String message) {
-            Log.e(TAG, "Could not load photos: " + message);
-            showError("Error while fetching photos");
+            Log.e(TAG, "Could not load albums: " + message);
+            showError("Error while fetching albums");
           }
         });
-    request.execute();
+    albumsLoader.loadNextPage();
   }
 
   /**
@@ -174,6 +186,32 @@ public class AlbumListActivity extends Activity {
 
   }
 
+  @Override
+  protected void onStop() {
+    super.onStop();
+    // Prefetched thumbnails are of no use while the list is not shown.
+    if (mainList.getAdapter() instanceof MultiColumnImageAdapter) {
+      ((MultiColumnImageAdapter<?>) mainList.getAdapter()).cancelPrefetches();
+    }
+    // The process might be killed while in the background.
+    WriteBehindQueue.get().flushInBackground();
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    releaseThumbnails();
+  }
+
+  /**
+   * Gives up the thumbnails the list shows, so they can be reused.
+   */
+  private void releaseThumbnails() {
+    if (mainList.getAdapter() instanceof MultiColumnImageAdapter) {
+      ((MultiColumnImageAdapter<?>) mainList.getAdapter()).releaseImages();
+    }
+  }
+
   @Override
   public Object onRetainNonConfigurationInstance() {
     return new SavedConfiguration(albums, cachedImageFetcher);
@@ -187,21 +225,56 @@ public class AlbumListActivity extends Activity {
     ThumbnailClickListener<Album> foo = new ThumbnailClickListener<Album>() {
       @Override
       public void thumbnailClicked(Album album) {
-        doPhotosRequest(album.getName(), album.getGdataUrl());
+        showPhotos(album.getName(), album.getGdataUrl());
       }
     };
-    mainList.setAdapter(new AlbumsAdapter(wrap(albums), inflater, foo,
-        cachedImageFetcher, getResources().getDisplayMetrics()));
+    AlbumsAdapter albumsAdapter = new AlbumsAdapter(wrap(albums), inflater,
+        foo, cachedImageFetcher, getResources().getDisplayMetrics());
+    releaseThumbnails();
+    mainList.setAdapter(albumsAdapter);
+    mainList.setOnScrollListener(albumsAdapter);
+    albumsAdapter.setNearEndListener(new NearEndListener() {
+      @Override
+      public void nearEnd() {
+        if (albumsLoader != null) {
+          albumsLoader.loadNextPage();
+        }
+      }
+    });
     BaseAdapter adapter = (BaseAdapter) mainList.getAdapter();
     adapter.notifyDataSetChanged();
     adapter.notifyDataSetInvalidated();
     mainList.invalidateViews();
   }
 
-  private void showPhotos(String albumTitle, List<Photo> photos) {
+  /**
+   * Appends albums to the ones that are shown already.
+   */
+  private void appendAlbums(List<Album> part) {
+    albums.addAll(part);
+    ((AlbumsAdapter) mainList.getAdapter()).addItems(wrap(part));
+  }
+
+  /**
+   * Replaces the given number of albums that are shown, starting at the given
+   * position, with the given ones. The other albums keep their thumbnails.
+   */
+  private void replaceAlbums(int position, int removed, List<Album> added) {
+    albums.subList(position, position + removed).clear();
+    albums.addAll(position, added);
+    ((AlbumsAdapter) mainList.getAdapter()).replaceItems(position, removed,
+        wrap(added));
+  }
+
+  /**
+   * Shows the photos of an album. They are loaded by the
+   * {@link PhotoListActivity}, so it can show the first ones while the rest of
+   * the feed is still arriving.
+   */
+  private void showPhotos(String albumTitle, String gdataUrl) {
     Log.d(TAG, "SHOW PHOTOS()");
     Intent intent = new Intent(this, PhotoListActivity.class);
-    intent.putParcelableArrayListExtra("photos", (ArrayList<Photo>) photos);
+    intent.putExtra("gdataUrl", gdataUrl);
     intent.putExtra("albumName", albumTitle);
     intent.putExtra("layout", R.layout.photo_list);
     startActivity(intent);
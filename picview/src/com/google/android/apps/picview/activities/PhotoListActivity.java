@@ -20,8 +20,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.AlertDialog.Builder;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Window;
@@ -30,11 +34,21 @@ import android.widget.BaseAdapter;
 import android.widget.ListView;
 
 import com.google.android.apps.picview.R;
+import com.google.android.apps.picview.adapter.MultiColumnImageAdapter;
+import com.google.android.apps.picview.adapter.MultiColumnImageAdapter.NearEndListener;
 import com.google.android.apps.picview.adapter.MultiColumnImageAdapter.ThumbnailClickListener;
 import com.google.android.apps.picview.adapter.PhotosAdapter;
+import com.google.android.apps.picview.data.AlbumRepository;
 import com.google.android.apps.picview.data.FileSystemImageCache;
+import com.google.android.apps.picview.data.FileSystemWebResponseCache;
+import com.google.android.apps.picview.data.ImageMemoryCache;
 import com.google.android.apps.picview.data.Photo;
+import com.google.android.apps.picview.data.WriteBehindQueue;
 import com.google.android.apps.picview.request.CachedImageFetcher;
+import com.google.android.apps.picview.request.CachedWebRequestFetcher;
+import com.google.android.apps.picview.request.PagedFeedLoader;
+import com.google.android.apps.picview.request.PicasaPhotosFeed;
+import com.google.android.apps.picview.request.PicasaPhotosUrl;
 import com.google.android.apps.picview.ui.ThumbnailItem;
 
 /**
@@ -45,12 +59,29 @@ import com.google.android.apps.picview.ui.ThumbnailItem;
  */
 public class PhotoListActivity extends Activity {
   private static final String TAG = PhotoListActivity.class.getSimpleName();
+
+  private static final PicasaPhotosFeed PHOTOS_FEED = new PicasaPhotosFeed();
+
+  private static class SavedConfiguration {
+    public final List<Photo> photos;
+    public final CachedImageFetcher cachedImageFetcher;
+
+    public SavedConfiguration(List<Photo> photos,
+        CachedImageFetcher cachedImageFetcher) {
+      this.photos = photos;
+      this.cachedImageFetcher = cachedImageFetcher;
+    }
+  }
+
   private ListView mainList;
   private LayoutInflater inflater;
 
   private String albumName;
+  private String gdataUrl;
   private List<Photo> photos;
   private CachedImageFetcher cachedImageFetcher;
+  private CachedWebRequestFetcher cachedWebRequestFetcher;
+  private PagedFeedLoader<Photo> photosLoader;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -63,22 +94,130 @@ public class PhotoListActivity extends Activity {
     mainList = (ListView) findViewById(R.id.photolist);
     inflater = LayoutInflater.from(this);
     albumName = getIntent().getExtras().getString("albumName");
-    photos = getIntent().getExtras().getParcelableArrayList("photos");
-    cachedImageFetcher = new CachedImageFetcher(new FileSystemImageCache());
+    gdataUrl = getIntent().getExtras().getString("gdataUrl");
+    cachedImageFetcher = new CachedImageFetcher(new FileSystemImageCache(),
+        ImageMemoryCache.get(this));
+    cachedWebRequestFetcher = new CachedWebRequestFetcher(
+        new FileSystemWebResponseCache());
     initCurrentConfiguration();
-    loadPhotos();
+
+    // Photos kept across a configuration change might not be complete, so
+    // they are only shown until the request delivers the first ones.
+    if (photos != null) {
+      loadPhotos();
+    }
+    doPhotosRequest();
   }
 
   private void initCurrentConfiguration() {
-    CachedImageFetcher savedImageFecther = (CachedImageFetcher) getLastNonConfigurationInstance();
-    if (savedImageFecther != null) {
-      cachedImageFetcher = savedImageFecther;
+    SavedConfiguration savedConfig = (SavedConfiguration) getLastNonConfigurationInstance();
+    if (savedConfig != null) {
+      photos = savedConfig.photos;
+      cachedImageFetcher = savedConfig.cachedImageFetcher;
+    }
+  }
+
+  /**
+   * Loads the photos of the album. The first ones are shown while the rest of
+   * the first page is still being parsed, the other pages are loaded as the
+   * user scrolls towards the end of the list.
+   */
+  private void doPhotosRequest() {
+    DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+    PicasaPhotosUrl url = new PicasaPhotosUrl(gdataUrl,
+        MultiColumnImageAdapter.getThumbnailSize(displayMetrics), Math.max(
+            displayMetrics.widthPixels, displayMetrics.heightPixels));
+    photosLoader = new PagedFeedLoader<Photo>(cachedWebRequestFetcher, url,
+        PHOTOS_FEED, "Loading photos...", this,
+        new PagedFeedLoader.Listener<Photo>() {
+          private boolean showing = false;
+
+          @Override
+          public void entriesAdded(List<Photo> part) {
+            if (!showing) {
+              showing = true;
+              photos = new ArrayList<Photo>(part);
+              loadPhotos();
+            } else {
+              photos.addAll(part);
+              ((PhotosAdapter) mainList.getAdapter()).addItems(wrap(part));
+            }
+          }
+
+          @Override
+          public void entriesReplaced(int position, int removed,
+              List<Photo> added) {
+            // A page loaded from the cache arrives as a whole.
+            if (!showing) {
+              showing = true;
+              photos = new ArrayList<Photo>(added);
+              loadPhotos();
+            } else {
+              photos.subList(position, position + removed).clear();
+              photos.addAll(position, added);
+              ((PhotosAdapter) mainList.getAdapter()).replaceItems(position,
+                  removed, wrap(added));
+            }
+          }
+
+          @Override
+          public void error(String message) {
+            Log.e(TAG, "Could not load photos: " + message);
+            showError("Error while fetching photos");
+          }
+        });
+    photosLoader.loadNextPage();
+  }
+
+  /**
+   * Show a visual error message to the user.
+   * 
+   * @param message
+   *          the message to show
+   */
+  private void showError(String message) {
+    final Builder builder = new AlertDialog.Builder(PhotoListActivity.this);
+    builder.setTitle(message);
+    builder.setIcon(android.R.drawable.ic_dialog_alert);
+    builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+      @Override
+      public void onClick(DialogInterface dialog, int which) {
+        dialog.dismiss();
+      }
+    });
+    builder.setMessage(message);
+    builder.show();
+  }
+
+  @Override
+  protected void onStop() {
+    super.onStop();
+    // Prefetched thumbnails are of no use while the list is not shown.
+    if (mainList.getAdapter() instanceof MultiColumnImageAdapter) {
+      ((MultiColumnImageAdapter<?>) mainList.getAdapter()).cancelPrefetches();
+    }
+    // The process might be killed while in the background.
+    WriteBehindQueue.get().flushInBackground();
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    releaseThumbnails();
+  }
+
+  /**
+   * Gives up the thumbnails the list shows, so they can be reused.
+   */
+  private void releaseThumbnails() {
+    if (mainList.getAdapter() instanceof MultiColumnImageAdapter) {
+      ((MultiColumnImageAdapter<?>) mainList.getAdapter()).releaseImages();
     }
   }
 
   @Override
   public Object onRetainNonConfigurationInstance() {
-    return cachedImageFetcher;
+    return new SavedConfiguration(photos, cachedImageFetcher);
   }
 
   private void loadPhotos() {
@@ -86,6 +225,8 @@ public class PhotoListActivity extends Activity {
       Log.d(TAG, "No photos!");
       return;
     }
+    // Parts appended later end up in the repository as well.
+    AlbumRepository.get().putPhotos(gdataUrl, photos);
 
     ThumbnailClickListener<Photo> clickListener = new ThumbnailClickListener<Photo>() {
       @Override
@@ -94,9 +235,20 @@ public class PhotoListActivity extends Activity {
       }
     };
 
-    mainList.setAdapter(new PhotosAdapter(wrap(photos), inflater,
+    PhotosAdapter photosAdapter = new PhotosAdapter(wrap(photos), inflater,
         clickListener, cachedImageFetcher, this.getResources()
-            .getDisplayMetrics()));
+            .getDisplayMetrics());
+    releaseThumbnails();
+    mainList.setAdapter(photosAdapter);
+    mainList.setOnScrollListener(photosAdapter);
+    photosAdapter.setNearEndListener(new NearEndListener() {
+      @Override
+      public void nearEnd() {
+        if (photosLoader != null) {
+          photosLoader.loadNextPage();
+        }
+      }
+    });
     BaseAdapter adapter = (BaseAdapter) mainList.getAdapter();
     adapter.notifyDataSetChanged();
     adapter.notifyDataSetInvalidated();
@@ -105,7 +257,9 @@ public class PhotoListActivity extends Activity {
 
   private void loadPhoto(Photo photo) {
     Intent intent = new Intent(this, PhotoViewActivity.class);
-    intent.putParcelableArrayListExtra("photos", (ArrayList<Photo>) photos);
+    // The photos are handed over through the repository, only the key of the
+    // album is sent along.
+    intent.putExtra("gdataUrl", gdataUrl);
     intent.putExtra("index", photos.indexOf(photo));
     intent.putExtra("albumName", albumName);
     startActivity(intent);
@@ -18,12 +18,15 @@ package com.google.android.apps.picview.activities;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
@@ -31,11 +34,24 @@ import android.view.WindowManager;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.google.android.apps.picview.PicViewConfig;
 import com.google.android.apps.picview.R;
+import com.google.android.apps.picview.adapter.MultiColumnImageAdapter;
+import com.google.android.apps.picview.data.AlbumRepository;
+import com.google.android.apps.picview.data.BitmapDecoder.Target;
 import com.google.android.apps.picview.data.FileSystemImageCache;
+import com.google.android.apps.picview.data.FileSystemWebResponseCache;
+import com.google.android.apps.picview.data.ImageMemoryCache;
 import com.google.android.apps.picview.data.Photo;
+import com.google.android.apps.picview.data.WriteBehindQueue;
 import com.google.android.apps.picview.request.CachedImageFetcher;
+import com.google.android.apps.picview.request.CachedWebRequestFetcher;
 import com.google.android.apps.picview.request.ImageLoadingTask;
+import com.google.android.apps.picview.request.PhotoPrefetchRing;
+import com.google.android.apps.picview.request.ImageRequestDispatcher.Priority;
+import com.google.android.apps.picview.request.PagedFeedLoader;
+import com.google.android.apps.picview.request.PicasaPhotosFeed;
+import com.google.android.apps.picview.request.PicasaPhotosUrl;
 
 /**
  * An activity that shows a single photo.
@@ -46,19 +62,24 @@ public class PhotoViewActivity extends Activity {
 
   private static class SavedConfiguration {
     public int currentIndex;
+    public List<Photo> photos;
     public CachedImageFetcher cachedImageFetcher;
 
-    public SavedConfiguration(int currentIndex,
+    public SavedConfiguration(int currentIndex, List<Photo> photos,
         CachedImageFetcher cachedImageFetcher) {
       this.currentIndex = currentIndex;
+      this.photos = photos;
       this.cachedImageFetcher = cachedImageFetcher;
     }
   }
 
+  private static final String TAG = PhotoViewActivity.class.getSimpleName();
   private static final String KEY_INDEX = "index";
-  private static final String KEY_PHOTOS = "photos";
+  private static final String KEY_GDATA_URL = "gdataUrl";
   private static final String KEY_ALBUM_NAME = "albumName";
 
+  private static final PicasaPhotosFeed PHOTOS_FEED = new PicasaPhotosFeed();
+
   private ImageView photoView;
   private TextView txtPhotoTitle;
   private TextView txtAlbumName;
@@ -70,6 +91,15 @@ public class PhotoViewActivity extends Activity {
   private String albumName = "";
   private CachedImageFetcher cachedImageFetcher;
   private int photoSizeLongSide = -1;
+  private Target photoTarget;
+  private Target thumbnailTarget;
+  private PhotoPrefetchRing prefetchRing;
+
+  /** Loads the photos after the ones handed over by the photo list. */
+  private PagedFeedLoader<Photo> photosLoader;
+  /** Whether a change of the loaded photos was left out of the shown ones. */
+  private boolean photosDiverged = false;
+  private ImageLoadingTask currentLoadingTask;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -98,29 +128,138 @@ public class PhotoViewActivity extends Activity {
       }
     });
 
-    cachedImageFetcher = new CachedImageFetcher(new FileSystemImageCache());
+    cachedImageFetcher = new CachedImageFetcher(new FileSystemImageCache(),
+        ImageMemoryCache.get(this));
     initCurrentConfiguration();
-    showPhoto();
+    doPhotosRequest();
+    if (photos != null) {
+      showPhoto();
+    }
+  }
+
+  @Override
+  protected void onStop() {
+    super.onStop();
+    // The process might be killed while in the background.
+    WriteBehindQueue.get().flushInBackground();
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    // The photo on screen is not shown anymore and can be reused.
+    if (currentLoadingTask != null) {
+      currentLoadingTask.cancelLoad();
+    }
+    ImageLoadingTask.releaseImage(photoView);
+    if (prefetchRing != null) {
+      prefetchRing.clear();
+    }
   }
 
   @Override
   public Object onRetainNonConfigurationInstance() {
-    return new SavedConfiguration(currentIndex, cachedImageFetcher);
+    return new SavedConfiguration(currentIndex, photos, cachedImageFetcher);
   }
 
   private void initCurrentConfiguration() {
     SavedConfiguration savedConfig = (SavedConfiguration) getLastNonConfigurationInstance();
     if (savedConfig != null) {
       currentIndex = savedConfig.currentIndex;
+      photos = savedConfig.photos;
       cachedImageFetcher = savedConfig.cachedImageFetcher;
     } else {
       currentIndex = getIntent().getExtras().getInt(KEY_INDEX);
+      List<Photo> albumPhotos = AlbumRepository.get().getPhotos(
+          getIntent().getExtras().getString(KEY_GDATA_URL));
+      if (albumPhotos != null) {
+        // The photo list might still append to its list.
+        photos = new ArrayList<Photo>(albumPhotos);
+      }
     }
-    photos = getIntent().getExtras().getParcelableArrayList(KEY_PHOTOS);
     albumName = getIntent().getExtras().getString(KEY_ALBUM_NAME);
   }
 
+  /**
+   * Loads the photos of the album. If the photo list loaded some of them
+   * already, the ones after them are loaded as the user pages towards the end.
+   * Otherwise, e.g. as the process was restarted, they are loaded up to the
+   * photo to show. They are usually stored on the device, so this does not go
+   * to the network.
+   */
+  private void doPhotosRequest() {
+    // The same URL the photo list requests, so the stored pages are found.
+    DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+    PicasaPhotosUrl url = new PicasaPhotosUrl(getIntent().getExtras()
+        .getString(KEY_GDATA_URL),
+        MultiColumnImageAdapter.getThumbnailSize(displayMetrics), Math.max(
+            displayMetrics.widthPixels, displayMetrics.heightPixels));
+    photosLoader = new PagedFeedLoader<Photo>(new CachedWebRequestFetcher(
+        new FileSystemWebResponseCache()), url, PHOTOS_FEED,
+        "Loading photos...", this, new PagedFeedLoader.Listener<Photo>() {
+          @Override
+          public void entriesAdded(List<Photo> part) {
+            if (photos != null) {
+              photos.addAll(part);
+            } else {
+              showPhotoWhenLoaded();
+            }
+          }
+
+          @Override
+          public void entriesReplaced(int position, int removed,
+              List<Photo> added) {
+            if (photos == null) {
+              // A page loaded from the cache arrives as a whole.
+              showPhotoWhenLoaded();
+            } else if (!photosDiverged && position > currentIndex) {
+              photos.subList(position, position + removed).clear();
+              photos.addAll(position, added);
+            } else {
+              // Changes up to the current photo are not applied, as they
+              // would move it. From now on, the loaded photos no longer
+              // match the shown ones.
+              photosDiverged = true;
+            }
+          }
+
+          @Override
+          public void error(String message) {
+            Log.e(TAG, "Could not load photos: " + message);
+            if (photos == null) {
+              finish();
+            }
+          }
+        });
+    if (photos != null) {
+      photosLoader.resumeAfter(photos);
+    } else {
+      photosLoader.loadNextPage();
+    }
+  }
+
+  /**
+   * Shows the photo once the page holding it has been loaded. Until then, the
+   * next page is loaded.
+   */
+  private void showPhotoWhenLoaded() {
+    List<Photo> loaded = photosLoader.getEntries();
+    if (currentIndex < loaded.size()) {
+      photos = new ArrayList<Photo>(loaded);
+      showPhoto();
+    } else {
+      photosLoader.loadNextPage();
+    }
+  }
+
   private void showNextPhoto() {
+    if (photos == null) {
+      return;
+    }
+    // The next page is loaded before the prefetch ring runs out of photos.
+    if (currentIndex + PicViewConfig.PHOTO_PREFETCH_AHEAD >= photos.size()) {
+      photosLoader.loadNextPage();
+    }
     currentIndex++;
     if (currentIndex == photos.size()) {
       currentIndex--;
@@ -130,6 +269,9 @@ public class PhotoViewActivity extends Activity {
   }
 
   private void showPreviousPhoto() {
+    if (photos == null) {
+      return;
+    }
     currentIndex--;
     if (currentIndex < 0) {
       currentIndex = 0;
@@ -144,35 +286,76 @@ public class PhotoViewActivity extends Activity {
       DisplayMetrics displayMetrics = this.getResources().getDisplayMetrics();
       photoSizeLongSide = Math.max(displayMetrics.heightPixels,
           displayMetrics.widthPixels);
+      photoTarget = Target.forPhoto(photoSizeLongSide, Math.min(
+          displayMetrics.heightPixels, displayMetrics.widthPixels));
+      // The same target the photo list uses, so its cached thumbnails match.
+      thumbnailTarget = Target.forThumbnail(MultiColumnImageAdapter
+          .getThumbnailSize(displayMetrics));
+      prefetchRing = new PhotoPrefetchRing(new PhotoPrefetchRing.Source() {
+        @Override
+        public int getCount() {
+          return photos.size();
+        }
+
+        @Override
+        public URL getUrl(int index) {
+          return getPhotoUrl(index);
+        }
+      }, cachedImageFetcher, photoTarget, PicViewConfig.PHOTO_PREFETCH_AHEAD,
+          PicViewConfig.PHOTO_PREFETCH_BEHIND, ImageMemoryCache.get(this)
+              .maxSize() / PicViewConfig.PHOTO_PREFETCH_CACHE_FRACTION);
+    }
+
+    // When paging quickly, the photo we paged past is not needed anymore.
+    if (currentLoadingTask != null) {
+      currentLoadingTask.cancelLoad();
     }
 
+    URL url = getPhotoUrl(currentIndex);
+    if (url == null) {
+      return;
+    }
+
+    // The thumbnail is usually cached from the photo list, so we can show it
+    // right away, until the photo is in.
+    ProgressDialog progressDialog = new ProgressDialog(this);
+    progressDialog.setMessage("Loading photo");
+    currentLoadingTask = new ImageLoadingTask(photoView, url,
+        cachedImageFetcher, photoTarget, Priority.FULL_SCREEN, progressDialog);
+    // The prefetched photo is shown as is, even if the memory cache evicted it.
+    Bitmap prefetched = prefetchRing.take(url);
+    if (prefetched != null) {
+      currentLoadingTask.setImage(prefetched);
+    }
     try {
-      ProgressDialog progressDialog = new ProgressDialog(this);
-      progressDialog.setMessage("Loading photo");
-      ImageLoadingTask imageLoadingTask = new ImageLoadingTask(
-          photoView,
-          new URL(photos.get(currentIndex).getMediumImageUrl(photoSizeLongSide)),
-          cachedImageFetcher, progressDialog);
-      imageLoadingTask.execute();
+      currentLoadingTask.setPlaceholder(new URL(photos.get(currentIndex)
+          .getThumbnailUrl()), thumbnailTarget);
     } catch (MalformedURLException e) {
       e.printStackTrace();
-      return;
     }
+    currentLoadingTask.dispatch();
 
     txtPhotoTitle.setText(photos.get(currentIndex).getName());
     txtAlbumName.setText(albumName);
 
-    if (photos.size() > (currentIndex + 1)) {
-      try {
-        Photo photo = photos.get(currentIndex + 1);
-        if (photo != null) {
-          cachedImageFetcher.maybePrefetchImageAsync(new URL(photo
-              .getMediumImageUrl(photoSizeLongSide)));
-        }
-      } catch (MalformedURLException e) {
-        e.printStackTrace();
-        return;
-      }
+    prefetchRing.moveTo(currentIndex);
+  }
+
+  /**
+   * Returns the URL of the photo at the given index in the size it is shown
+   * at, or null if the URL is invalid.
+   */
+  private URL getPhotoUrl(int index) {
+    Photo photo = photos.get(index);
+    if (photo == null) {
+      return null;
+    }
+    try {
+      // The feed was requested with photos in this size.
+      return new URL(photo.getImageUrl());
+    } catch (MalformedURLException e) {
+      e.printStackTrace();
+      return null;
     }
   }
 }
@@ -18,11 +18,11 @@ package com.google.android.apps.picview.activities;
 
 import android.os.Bundle;
 import android.preference.PreferenceActivity;
-import android.preference.PreferenceManager;
 import android.view.WindowManager;
 import android.widget.Toast;
 
 import com.google.android.apps.picview.R;
+import com.google.android.apps.picview.data.CacheBudget;
 
 /**
  * The preferences activity shows common preferences that can be configured by
@@ -55,11 +55,11 @@ public class PicViewPreferencesActivity extends PreferenceActivity {
       Toast.makeText(this,
           "Changing cache: " + (currentCacheValue - oldCacheValue) + " MB",
           Toast.LENGTH_SHORT).show();
+      CacheBudget.apply(this);
     }
   }
 
   private int getCurrentCacheValue() {
-    return Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(this)
-        .getString("cacheSize", "400"));
+    return CacheBudget.getCacheSizeMb(this);
   }
 }
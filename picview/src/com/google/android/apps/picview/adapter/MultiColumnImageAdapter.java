@@ -18,7 +18,11 @@ package com.google.android.apps.picview.adapter;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import android.graphics.Color;
 import android.util.DisplayMetrics;
@@ -28,6 +32,8 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
@@ -35,7 +41,9 @@ import android.widget.TextView;
 
 import com.google.android.apps.picview.PicViewConfig;
 import com.google.android.apps.picview.R;
+import com.google.android.apps.picview.data.BitmapDecoder.Target;
 import com.google.android.apps.picview.request.CachedImageFetcher;
+import com.google.android.apps.picview.request.CancellationToken;
 import com.google.android.apps.picview.request.ImageLoadingTask;
 import com.google.android.apps.picview.ui.ThumbnailItem;
 import com.google.android.apps.picview.view.ThumbnailSlotView;
@@ -43,6 +51,10 @@ import com.google.android.apps.picview.view.ThumbnailSlotView;
 /**
  * This adapter renders thumbnails and their description in as many columns as
  * possible.
+ * <p>
+ * When set as the scroll listener of its list, the adapter also prefetches the
+ * thumbnails of the rows the user is scrolling towards. Prefetches of rows that
+ * fall behind, e.g. when the user reverses direction, are cancelled.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  * 
@@ -50,11 +62,20 @@ import com.google.android.apps.picview.view.ThumbnailSlotView;
  *          the type of the data items being displayed and returned by the
  *          callback
  */
-public abstract class MultiColumnImageAdapter<T> extends BaseAdapter {
+public abstract class MultiColumnImageAdapter<T> extends BaseAdapter
+    implements OnScrollListener {
   public static interface ThumbnailClickListener<T> {
     public void thumbnailClicked(T object);
   }
 
+  /**
+   * Notified when the user scrolled close to the end of the data items, e.g.
+   * to load more of them.
+   */
+  public static interface NearEndListener {
+    public void nearEnd();
+  }
+
   private static final String TAG = MultiColumnImageAdapter.class
       .getSimpleName();
 
@@ -64,6 +85,18 @@ public abstract class MultiColumnImageAdapter<T> extends BaseAdapter {
   private final CachedImageFetcher cachedImageFetcher;
   private final int slotsPerRow;
   private final int slotWidth;
+  private final Target thumbnailTarget;
+
+  /** The prefetches that are currently running, by data index. */
+  private final Map<Integer, CancellationToken> prefetches = new HashMap<Integer, CancellationToken>();
+  private int prefetchRows = PicViewConfig.THUMBNAIL_PREFETCH_ROWS;
+  private int firstVisibleRow = -1;
+  private int visibleRowCount = 0;
+  private boolean scrollingDown = true;
+  private NearEndListener nearEndListener;
+
+  /** All slots created, so their images can be released. */
+  private final List<ThumbnailSlotView> createdSlots = new ArrayList<ThumbnailSlotView>();
 
   /**
    * Instantiates a new MultiColumnImageAdapter.
@@ -89,14 +122,21 @@ public abstract class MultiColumnImageAdapter<T> extends BaseAdapter {
     this.cachedImageFetcher = cachedImageFetcher;
 
     // Determine how many thumbnails can be put onto one row.
-    float thumbnailWithPx = PicViewConfig.ALBUM_THUMBNAIL_SIZE
-        * displayMetrics.density;
+    float thumbnailWithPx = getThumbnailSize(displayMetrics);
+    thumbnailTarget = Target.forThumbnail((int) thumbnailWithPx);
     slotsPerRow = (int) Math
         .floor(displayMetrics.widthPixels / thumbnailWithPx);
     Log.d(TAG, "Photos per row: " + slotsPerRow);
     slotWidth = displayMetrics.widthPixels / slotsPerRow;
   }
 
+  /**
+   * Returns the size thumbnails are shown at, in pixels.
+   */
+  public static int getThumbnailSize(DisplayMetrics displayMetrics) {
+    return (int) (PicViewConfig.ALBUM_THUMBNAIL_SIZE * displayMetrics.density);
+  }
+
   @Override
   public View getView(int position, View convertView, ViewGroup parent) {
     LinearLayout row = (LinearLayout) convertView;
@@ -139,6 +179,177 @@ public abstract class MultiColumnImageAdapter<T> extends BaseAdapter {
     return row;
   }
 
+  /**
+   * Appends data items, e.g. while the rest of them is still being loaded.
+   * Thumbnails of rows that become visible or enter the prefetch window are
+   * fetched right away.
+   */
+  public void addItems(List<ThumbnailItem<T>> items) {
+    dataItems.addAll(items);
+    notifyDataSetChanged();
+    updatePrefetchWindow();
+    checkNearEnd();
+  }
+
+  /**
+   * Replaces the given number of data items, starting at the given position,
+   * with the given ones, e.g. as a newer version of them was loaded. Slots
+   * that keep showing the same item keep their thumbnails as well.
+   */
+  public void replaceItems(int position, int removed,
+      List<ThumbnailItem<T>> items) {
+    dataItems.subList(position, position + removed).clear();
+    dataItems.addAll(position, items);
+
+    // The prefetches of the removed items are not needed anymore, those of
+    // the items behind them moved.
+    Map<Integer, CancellationToken> moved = new HashMap<Integer, CancellationToken>();
+    for (Map.Entry<Integer, CancellationToken> prefetch : prefetches
+        .entrySet()) {
+      int index = prefetch.getKey();
+      if (index < position) {
+        moved.put(index, prefetch.getValue());
+      } else if (index < position + removed) {
+        prefetch.getValue().cancel();
+      } else {
+        moved.put(index - removed + items.size(), prefetch.getValue());
+      }
+    }
+    prefetches.clear();
+    prefetches.putAll(moved);
+
+    notifyDataSetChanged();
+    updatePrefetchWindow();
+    checkNearEnd();
+  }
+
+  /**
+   * Sets the listener that is notified when the rows within the prefetch
+   * window reach the end of the data items.
+   */
+  public void setNearEndListener(NearEndListener nearEndListener) {
+    this.nearEndListener = nearEndListener;
+    checkNearEnd();
+  }
+
+  /**
+   * Sets the number of rows ahead of the visible ones that are prefetched.
+   * Zero disables prefetching.
+   */
+  public void setPrefetchRows(int prefetchRows) {
+    this.prefetchRows = prefetchRows;
+    updatePrefetchWindow();
+  }
+
+  @Override
+  public void onScroll(AbsListView view, int firstVisibleItem,
+      int visibleItemCount, int totalItemCount) {
+    if (visibleItemCount == 0 || (firstVisibleItem == firstVisibleRow
+        && visibleItemCount == visibleRowCount)) {
+      return;
+    }
+    if (firstVisibleItem != firstVisibleRow && firstVisibleRow != -1) {
+      scrollingDown = firstVisibleItem > firstVisibleRow;
+    }
+    firstVisibleRow = firstVisibleItem;
+    visibleRowCount = visibleItemCount;
+    updatePrefetchWindow();
+    checkNearEnd();
+  }
+
+  @Override
+  public void onScrollStateChanged(AbsListView view, int scrollState) {
+  }
+
+  /**
+   * Cancels all prefetches, e.g. when the list is not shown anymore.
+   */
+  public void cancelPrefetches() {
+    for (CancellationToken cancellation : prefetches.values()) {
+      cancellation.cancel();
+    }
+    prefetches.clear();
+  }
+
+  /**
+   * Stops loading thumbnails and releases the ones the slots show, so they can
+   * be reused. Must be called once the adapter is not used anymore, e.g. when
+   * the activity is destroyed.
+   */
+  public void releaseImages() {
+    cancelPrefetches();
+    for (ThumbnailSlotView slot : createdSlots) {
+      ImageLoadingTask task = slot.getImageLoadingTask();
+      if (task != null) {
+        task.cancelLoad();
+        slot.setImageLoadingTask(null);
+      }
+      ImageLoadingTask.releaseImage((ImageView) slot
+          .findViewById(R.id.album_thumbnail));
+    }
+  }
+
+  /**
+   * Notifies the near end listener, if the last row is visible or within the
+   * prefetch window.
+   */
+  private void checkNearEnd() {
+    if (nearEndListener == null || firstVisibleRow == -1) {
+      return;
+    }
+    if (firstVisibleRow + visibleRowCount + prefetchRows >= getCount()) {
+      nearEndListener.nearEnd();
+    }
+  }
+
+  /**
+   * Prefetches the rows ahead of the visible ones in scroll direction and
+   * cancels the prefetches of all other rows.
+   */
+  private void updatePrefetchWindow() {
+    if (firstVisibleRow == -1) {
+      return;
+    }
+    int firstRow;
+    int lastRow;
+    if (scrollingDown) {
+      firstRow = firstVisibleRow + visibleRowCount;
+      lastRow = firstRow + prefetchRows - 1;
+    } else {
+      lastRow = firstVisibleRow - 1;
+      firstRow = lastRow - prefetchRows + 1;
+    }
+    int firstIndex = Math.max(0, firstRow * slotsPerRow);
+    int lastIndex = Math.min(dataItems.size() - 1, (lastRow + 1) * slotsPerRow
+        - 1);
+
+    // Rows that fell out of the window are not needed anytime soon.
+    Iterator<Map.Entry<Integer, CancellationToken>> it = prefetches.entrySet()
+        .iterator();
+    while (it.hasNext()) {
+      Map.Entry<Integer, CancellationToken> prefetch = it.next();
+      int index = prefetch.getKey();
+      if (index < firstIndex || index > lastIndex) {
+        prefetch.getValue().cancel();
+        it.remove();
+      }
+    }
+
+    for (int i = firstIndex; i <= lastIndex; ++i) {
+      if (prefetches.containsKey(i)) {
+        continue;
+      }
+      try {
+        CancellationToken cancellation = new CancellationToken();
+        cachedImageFetcher.maybePrefetchImageAsync(new URL(dataItems.get(i)
+            .getThumbnailUrl()), thumbnailTarget, cancellation);
+        prefetches.put(i, cancellation);
+      } catch (MalformedURLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
   @Override
   public long getItemId(int position) {
     return (long) Math.floor(position / slotsPerRow);
@@ -176,11 +387,18 @@ public abstract class MultiColumnImageAdapter<T> extends BaseAdapter {
     TextView picTitle = (TextView) slot.findViewById(R.id.picture_title);
     picTitle.setText(item.getTitle());
 
-    // We need to cancel the UI update of the image loading task for this
-    // slot, if one is present and instead set the loading icon.
+    // We need to cancel the image loading task for this slot, if one is
+    // present and instead set the loading icon. Its download is stopped, as
+    // the row has been scrolled past. If the slot shows the same thumbnail,
+    // e.g. as the data set changed elsewhere, it is kept.
     ImageLoadingTask previousLoadingTask = slot.getImageLoadingTask();
     if (previousLoadingTask != null) {
-      previousLoadingTask.setCancelUiUpdate(true);
+      if (!previousLoadingTask.isCancelled()
+          && previousLoadingTask.getUrl().toString()
+              .equals(item.getThumbnailUrl())) {
+        return;
+      }
+      previousLoadingTask.cancelLoad();
     }
 
     ImageView albumThumbnail = (ImageView) slot
@@ -188,12 +406,13 @@ public abstract class MultiColumnImageAdapter<T> extends BaseAdapter {
 
     // The ImageLoadingTask will load the thumbnail asynchronously and set
     // the result as soon as the response is in. The image will be set
-    // immediately, if the result is already in cache.
+    // immediately, if the result is already in cache. Either way the
+    // thumbnail shown before is detached and returns to the BitmapPool.
     try {
       ImageLoadingTask task = new ImageLoadingTask(albumThumbnail, new URL(
-          item.getThumbnailUrl()), cachedImageFetcher);
+          item.getThumbnailUrl()), cachedImageFetcher, thumbnailTarget);
       slot.setImageLoadingTask(task);
-      task.execute();
+      task.dispatch();
     } catch (MalformedURLException e) {
       e.printStackTrace();
     }
@@ -214,6 +433,7 @@ public abstract class MultiColumnImageAdapter<T> extends BaseAdapter {
     slot.setLayoutParams(layoutParams);
     slot.setGravity(Gravity.CENTER_HORIZONTAL);
     slot.setId(R.layout.picture_entry);
+    createdSlots.add(slot);
     return slot;
   }
 }
@@ -18,8 +18,11 @@ package com.google.android.apps.picview.data;
 
 import java.io.File;
 
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteProgram;
+import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
@@ -38,9 +41,15 @@ public class AbstractPicViewDatabase {
    * Returns a usable database with the given name. If a database with this name
    * already exists, it is returned. Otherwise created with the given SQL create
    * query.
+   * <p>
+   * The create query always creates the latest schema. Existing databases are
+   * brought up to date with the upgrade queries: The query at index
+   * <code>i</code> upgrades the schema from version <code>i + 1</code> to
+   * <code>i + 2</code>. Queries may consist of several statements separated by
+   * semicolons.
    */
   protected static SQLiteDatabase getUsableDataBase(String dbName,
-      String sqlCreateQuery) {
+      String sqlCreateQuery, String... sqlUpgradeQueries) {
     File dbFile = getPathToDb(dbName);
 
     File fileDirectory = new File(dbFile.getParent());
@@ -50,12 +59,29 @@ public class AbstractPicViewDatabase {
       fileDirectory.mkdirs();
     }
     Log.d(TAG, "DB Path: " + dbFile.getAbsolutePath());
-    boolean initDb = !dbFile.exists();
     try {
       SQLiteDatabase result = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+      int latestVersion = sqlUpgradeQueries.length + 1;
 
-      if (initDb) {
-        result.execSQL(sqlCreateQuery);
+      // The schema and its version are changed in one transaction. This way a
+      // crash in the middle does not leave behind half of an upgrade, which
+      // would fail again on every following start.
+      result.beginTransaction();
+      try {
+        if (isEmpty(result)) {
+          execStatements(result, sqlCreateQuery);
+        } else {
+          // Databases created before versioning was introduced report 0.
+          int version = Math.max(1, result.getVersion());
+          for (; version < latestVersion; ++version) {
+            Log.i(TAG, "Upgrading " + dbName + " to version " + (version + 1));
+            execStatements(result, sqlUpgradeQueries[version - 1]);
+          }
+        }
+        result.setVersion(latestVersion);
+        result.setTransactionSuccessful();
+      } finally {
+        result.endTransaction();
       }
 
       return result;
@@ -65,6 +91,50 @@ public class AbstractPicViewDatabase {
     }
   }
 
+  /**
+   * Enables write-ahead logging for the given database, where it is available.
+   * This way reads do not wait for writes, and committing a transaction only
+   * has to sync the log.
+   */
+  protected static void enableWriteAheadLogging(SQLiteDatabase db) {
+    if (db != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      db.enableWriteAheadLogging();
+    }
+  }
+
+  /**
+   * Binds the given value to a statement, which may be <code>null</code>.
+   */
+  protected static void bindString(SQLiteProgram program, int index,
+      String value) {
+    if (value == null) {
+      program.bindNull(index);
+    } else {
+      program.bindString(index, value);
+    }
+  }
+
+  /**
+   * Returns whether the given database has no tables yet, e.g. as it was just
+   * created, or creating it was interrupted.
+   */
+  private static boolean isEmpty(SQLiteDatabase db) {
+    // The platform adds its own metadata table to every database.
+    return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master"
+        + " WHERE type = 'table' AND name != 'android_metadata'", null) == 0;
+  }
+
+  /**
+   * Executes all statements of the given query, separated by semicolons.
+   */
+  private static void execStatements(SQLiteDatabase db, String query) {
+    for (String statement : query.split(";")) {
+      if (statement.trim().length() > 0) {
+        db.execSQL(statement);
+      }
+    }
+  }
+
   /**
    * Returns a file for the data base with the given name.
    */
@@ -16,24 +16,21 @@
 
 package com.google.android.apps.picview.data;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.Serializable;
-import java.io.StreamCorruptedException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.xml.sax.SAXException;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
+import android.text.TextUtils;
 import android.util.Xml;
 
 import com.google.android.apps.picview.data.parser.PicasaAlbumsSaxHandler;
+import com.google.android.apps.picview.request.ResponseParser.PartialResultListener;
 
 /**
  * The Album data object containing all information about an album.
@@ -43,44 +40,40 @@ import com.google.android.apps.picview.data.parser.PicasaAlbumsSaxHandler;
 public class Album implements Serializable, Parcelable {
   private static final long serialVersionUID = 1L;
 
-  public static final Parcelable.Creator<Photo> CREATOR = new Parcelable.Creator<Photo>() {
-    public Photo createFromParcel(Parcel in) {
-      try {
-        ObjectInputStream inputStream = new ObjectInputStream(
-            new ByteArrayInputStream(in.createByteArray()));
-        return (Photo) inputStream.readObject();
-      } catch (StreamCorruptedException e) {
-        e.printStackTrace();
-      } catch (IOException e) {
-        e.printStackTrace();
-      } catch (ClassNotFoundException e) {
-        e.printStackTrace();
-      }
-      return null;
+  public static final Parcelable.Creator<Album> CREATOR = new Parcelable.Creator<Album>() {
+    public Album createFromParcel(Parcel in) {
+      Album album = new Album();
+      album.name = in.readString();
+      album.thumbnailUrl = in.readString();
+      album.gdataUrl = in.readString();
+      return album;
     }
 
-    public Photo[] newArray(int size) {
-      return new Photo[size];
+    public Album[] newArray(int size) {
+      return new Album[size];
     }
   };
 
-  private static final String TAG = "Album";
   private String name;
   private String thumbnailUrl;
   private String gdataUrl;
 
   /**
-   * Parses Picasa albums XML and returns a list of albums.
+   * Parses Picasa albums XML and returns a list of albums. The XML is parsed
+   * while it is read from the stream.
+   * 
+   * @param xml
+   *          the albums XML, encoded as UTF-8
+   * @param listener
+   *          notified of batches of albums while the rest of the XML is still
+   *          parsed, may be <code>null</code>
    */
-  public static List<Album> parseFromPicasaXml(String xmlStr) {
-    PicasaAlbumsSaxHandler handler = new PicasaAlbumsSaxHandler();
-    try {
-      Xml.parse(xmlStr, handler);
-      return handler.getAlbums();
-    } catch (SAXException e) {
-      Log.e(TAG, e.getMessage(), e);
-    }
-    return new ArrayList<Album>();
+  public static List<Album> parseFromPicasaXml(InputStream xml,
+      PartialResultListener<List<Album>> listener) throws IOException,
+      SAXException {
+    PicasaAlbumsSaxHandler handler = new PicasaAlbumsSaxHandler(listener);
+    Xml.parse(xml, Xml.Encoding.UTF_8, handler);
+    return handler.getAlbums();
   }
 
   public void setName(String name) {
@@ -107,19 +100,20 @@ public class Album implements Serializable, Parcelable {
     return gdataUrl;
   }
 
-  /**
-   * Returns the serialized object.
-   */
-  public byte[] convertToBytes() {
-    try {
-      ByteArrayOutputStream result = new ByteArrayOutputStream();
-      ObjectOutputStream output = new ObjectOutputStream(result);
-      output.writeObject(this);
-      return result.toByteArray();
-    } catch (IOException e) {
-      e.printStackTrace();
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Album)) {
+      return false;
     }
-    return null;
+    Album other = (Album) o;
+    return TextUtils.equals(name, other.name)
+        && TextUtils.equals(thumbnailUrl, other.thumbnailUrl)
+        && TextUtils.equals(gdataUrl, other.gdataUrl);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(new Object[] { name, thumbnailUrl, gdataUrl });
   }
 
   @Override
@@ -129,6 +123,9 @@ public class Album implements Serializable, Parcelable {
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
-    dest.writeByteArray(convertToBytes());
+    // Field by field, in the order they are read by the CREATOR.
+    dest.writeString(name);
+    dest.writeString(thumbnailUrl);
+    dest.writeString(gdataUrl);
   }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the photos of the most recently shown albums in memory. This way
+ * activities only have to exchange the key of an album and an index, instead
+ * of shipping all of its photos through an Intent.
+ * <p>
+ * The repository lives as long as the process does. An activity that is
+ * restored in a new process has to load the album again, if it is missing.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class AlbumRepository {
+  /** The number of albums that are kept. */
+  private static final int MAX_ALBUMS = 4;
+
+  private static AlbumRepository repository;
+
+  private final Map<String, List<Photo>> albums = new LinkedHashMap<String, List<Photo>>(
+      MAX_ALBUMS, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, List<Photo>> eldest) {
+      return size() > MAX_ALBUMS;
+    }
+  };
+
+  private AlbumRepository() {
+  }
+
+  /**
+   * Returns the singleton instance of the {@link AlbumRepository}.
+   */
+  public static synchronized AlbumRepository get() {
+    if (repository == null) {
+      repository = new AlbumRepository();
+    }
+    return repository;
+  }
+
+  /**
+   * Puts the photos of the album with the given key, replacing the ones put
+   * before. The list is not copied, so the photos appended to it while the
+   * album is still loading are visible to readers as well.
+   * 
+   * @param albumKey
+   *          the key of the album, e.g. its feed URL
+   */
+  public synchronized void putPhotos(String albumKey, List<Photo> photos) {
+    albums.put(albumKey, photos);
+  }
+
+  /**
+   * Returns the photos of the album with the given key.
+   * 
+   * @return the photos, or <code>null</code> if the album is not kept (anymore)
+   */
+  public synchronized List<Photo> getPhotos(String albumKey) {
+    return albums.get(albumKey);
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Decodes images no larger than needed for the place they are shown in.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class BitmapDecoder {
+  private static final String TAG = BitmapDecoder.class.getSimpleName();
+
+  /**
+   * Describes the size and pixel format an image is decoded for.
+   */
+  public static class Target {
+    /** The width of the place the image is shown in (in pixels). */
+    public final int width;
+    /** The height of the place the image is shown in (in pixels). */
+    public final int height;
+    /** The pixel format to decode to. */
+    public final Bitmap.Config config;
+
+    public Target(int width, int height, Bitmap.Config config) {
+      this.width = width;
+      this.height = height;
+      this.config = config;
+    }
+
+    /**
+     * Returns the target for a square thumbnail slot. Thumbnails are opaque,
+     * so they are decoded to {@link Bitmap.Config#RGB_565}, which needs half
+     * the memory of {@link Bitmap.Config#ARGB_8888}.
+     * 
+     * @param size
+     *          the width and height of the slot in pixels
+     */
+    public static Target forThumbnail(int size) {
+      return new Target(size, size, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * Returns the target for a photo that is shown full-screen.
+     * 
+     * @param longSide
+     *          the long side of the screen in pixels
+     * @param shortSide
+     *          the short side of the screen in pixels
+     */
+    public static Target forPhoto(int longSide, int shortSide) {
+      return new Target(longSide, shortSide, Bitmap.Config.ARGB_8888);
+    }
+  }
+
+  /**
+   * Something an image can be decoded from, as many times as needed.
+   */
+  private static interface Source {
+    public Bitmap decode(BitmapFactory.Options options) throws IOException;
+  }
+
+  private BitmapDecoder() {
+  }
+
+  /**
+   * Decodes the given image data. Only the bounds are decoded first, so that
+   * the image can then be decoded with the largest power-of-two sample size
+   * that still covers the target.
+   * <p>
+   * Decoded bitmaps are mutable, so they can be reused through the
+   * {@link BitmapPool}. A bitmap from the pool is only reused when the image
+   * is decoded without sampling, as older platform versions require the exact
+   * size in that case.
+   * 
+   * @param data
+   *          the encoded image
+   * @param target
+   *          the target to decode for
+   * @return The decoded bitmap or <code>null</code>, if it could not be
+   *         decoded.
+   */
+  public static Bitmap decode(byte[] data, Target target) {
+    return decode(data, 0, data.length, target);
+  }
+
+  /**
+   * Same as {@link #decode(byte[], Target)}, but only decodes
+   * <code>length</code> bytes of <code>data</code>, starting at
+   * <code>offset</code>.
+   */
+  public static Bitmap decode(final byte[] data, final int offset,
+      final int length, Target target) {
+    return decode(new Source() {
+      @Override
+      public Bitmap decode(BitmapFactory.Options options) {
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+      }
+    }, target);
+  }
+
+  /**
+   * Same as {@link #decode(byte[], Target)}, but reads the encoded image from
+   * the given file.
+   */
+  public static Bitmap decode(File file, Target target) {
+    FileInputStream inputStream = null;
+    try {
+      final FileInputStream in = new FileInputStream(file);
+      inputStream = in;
+      return decode(new Source() {
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) throws IOException {
+          // Every pass starts reading at the beginning of the file.
+          in.getChannel().position(0);
+          return BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
+        }
+      }, target);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not open " + file + ": " + e.getMessage());
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          // Nothing we can do.
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Bitmap decode(Source source, Target target) {
+    Bitmap pooled = null;
+    try {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      source.decode(options);
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        Log.w(TAG, "Could not decode image bounds.");
+        return null;
+      }
+
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = computeSampleSize(options.outWidth,
+          options.outHeight, target);
+      options.inPreferredConfig = target.config;
+      // Bitmaps can only be decoded into from Honeycomb on. Before, they are
+      // immutable and never pooled.
+      boolean reuse = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+      if (reuse) {
+        options.inMutable = true;
+        if (options.inSampleSize == 1) {
+          pooled = BitmapPool.get().get(options.outWidth, options.outHeight,
+              target.config);
+          options.inBitmap = pooled;
+        }
+      }
+      Bitmap bitmap;
+      try {
+        bitmap = source.decode(options);
+      } catch (IllegalArgumentException ex) {
+        if (!reuse) {
+          throw ex;
+        }
+        // The pooled bitmap could not be reused for this image.
+        Log.w(TAG, "Could not reuse pooled bitmap.");
+        options.inBitmap = null;
+        bitmap = source.decode(options);
+      }
+      if (bitmap != null && bitmap == pooled) {
+        pooled = null;
+      }
+      return bitmap;
+    } catch (IOException ex) {
+      Log.w(TAG, "Could not read image: " + ex.getMessage());
+    } catch (OutOfMemoryError ex) {
+      Log.e(TAG, "Out of memory, cannot create bitmap.");
+      System.gc();
+    } finally {
+      // A pooled bitmap that was not decoded into is not lost.
+      if (pooled != null) {
+        BitmapPool.get().putBack(pooled);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the largest power-of-two sample size with which an image of the
+   * given size still covers the target. The long side of the image is matched
+   * against the long side of the target, so the orientation does not matter.
+   */
+  public static int computeSampleSize(int width, int height, Target target) {
+    int longSide = Math.max(width, height);
+    int shortSide = Math.min(width, height);
+    int targetLongSide = Math.max(target.width, target.height);
+    int targetShortSide = Math.min(target.width, target.height);
+
+    int sampleSize = 1;
+    while (longSide / (sampleSize * 2) >= targetLongSide
+        && shortSide / (sampleSize * 2) >= targetShortSide) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.google.android.apps.picview.PicViewConfig;
+
+/**
+ * A pool of bitmaps whose memory can be reused when decoding new images of the
+ * same size and pixel format.
+ * <p>
+ * Bitmaps are reference counted. The in-memory cache and every view showing a
+ * bitmap hold a reference through {@link #retain(Bitmap)}. Once the last
+ * reference is given up through {@link #release(Bitmap)}, the bitmap is not
+ * shown anywhere anymore and is put into the pool.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class BitmapPool {
+  private static final String TAG = BitmapPool.class.getSimpleName();
+
+  private static BitmapPool bitmapPool;
+
+  private final int maxBytes;
+  private int size = 0;
+  private int hitCount = 0;
+  private int missCount = 0;
+
+  /** Pooled bitmaps by size and pixel format. */
+  private final HashMap<String, LinkedList<Bitmap>> buckets = new HashMap<String, LinkedList<Bitmap>>();
+
+  /** All pooled bitmaps, the oldest first. */
+  private final LinkedList<Bitmap> pooled = new LinkedList<Bitmap>();
+
+  /** The number of references to the bitmaps that are in use. */
+  private final IdentityHashMap<Bitmap, Integer> references = new IdentityHashMap<Bitmap, Integer>();
+
+  protected BitmapPool(int maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the singleton instance of the {@link BitmapPool}. Its budget is a
+   * fraction of the maximum heap size, see
+   * {@link PicViewConfig#BITMAP_POOL_FRACTION}.
+   */
+  public static synchronized BitmapPool get() {
+    if (bitmapPool == null) {
+      int maxBytes = (int) (Runtime.getRuntime().maxMemory()
+          / PicViewConfig.BITMAP_POOL_FRACTION);
+      Log.d(TAG, "Bitmap pool size: " + maxBytes + " bytes");
+      bitmapPool = new BitmapPool(maxBytes);
+    }
+    return bitmapPool;
+  }
+
+  /**
+   * Takes a bitmap with the given size and pixel format out of the pool.
+   * 
+   * @return A bitmap that can be passed as
+   *         {@link android.graphics.BitmapFactory.Options#inBitmap} or
+   *         <code>null</code>, if none is available.
+   */
+  public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+    LinkedList<Bitmap> bucket = buckets.get(getKey(width, height, config));
+    if (bucket == null || bucket.isEmpty()) {
+      missCount++;
+      return null;
+    }
+    Bitmap bitmap = bucket.removeFirst();
+    pooled.remove(bitmap);
+    size -= ImageMemoryCache.getByteCount(bitmap);
+    hitCount++;
+    return bitmap;
+  }
+
+  /**
+   * Puts a bitmap taken through {@link #get(int, int, Bitmap.Config)} back
+   * into the pool, as it could not be decoded into after all.
+   */
+  public synchronized void putBack(Bitmap bitmap) {
+    // It does not count as reused.
+    hitCount--;
+    put(bitmap);
+  }
+
+  /**
+   * Adds a reference to the given bitmap. If the bitmap was still in the pool,
+   * it is taken out again.
+   */
+  public synchronized void retain(Bitmap bitmap) {
+    Integer count = references.get(bitmap);
+    if (count == null) {
+      removeFromPool(bitmap);
+      count = 0;
+    }
+    references.put(bitmap, count + 1);
+  }
+
+  /**
+   * Gives up a reference to the given bitmap. When the last reference is given
+   * up, the bitmap is put into the pool. Bitmaps that were never retained are
+   * ignored.
+   */
+  public synchronized void release(Bitmap bitmap) {
+    Integer count = references.get(bitmap);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      references.put(bitmap, count - 1);
+      return;
+    }
+    references.remove(bitmap);
+    put(bitmap);
+  }
+
+  /**
+   * Returns the number of times a bitmap could be reused.
+   */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of times no bitmap could be reused and a new one had to
+   * be allocated.
+   */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of bytes held by the pooled bitmaps.
+   */
+  public synchronized int getSize() {
+    return size;
+  }
+
+  private void put(Bitmap bitmap) {
+    // Only mutable bitmaps can be decoded into.
+    if (!bitmap.isMutable() || bitmap.isRecycled()) {
+      return;
+    }
+    int byteCount = ImageMemoryCache.getByteCount(bitmap);
+    if (byteCount > maxBytes) {
+      return;
+    }
+
+    String key = getKey(bitmap.getWidth(), bitmap.getHeight(),
+        bitmap.getConfig());
+    LinkedList<Bitmap> bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = new LinkedList<Bitmap>();
+      buckets.put(key, bucket);
+    }
+    bucket.addLast(bitmap);
+    pooled.addLast(bitmap);
+    size += byteCount;
+
+    // Drop the oldest bitmaps, so the garbage collector can free them.
+    while (size > maxBytes) {
+      removeFromPool(pooled.getFirst());
+    }
+  }
+
+  private void removeFromPool(Bitmap bitmap) {
+    if (!pooled.remove(bitmap)) {
+      return;
+    }
+    buckets.get(getKey(bitmap.getWidth(), bitmap.getHeight(),
+        bitmap.getConfig())).remove(bitmap);
+    size -= ImageMemoryCache.getByteCount(bitmap);
+  }
+
+  private static String getKey(int width, int height, Bitmap.Config config) {
+    return width + "x" + height + ":" + config;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.apps.picview.PicViewConfig;
+import com.google.android.apps.picview.request.ImageRequestDispatcher;
+import com.google.android.apps.picview.request.ImageRequestDispatcher.Priority;
+
+/**
+ * Splits the cache size the user configured in the preferences between the
+ * disk caches.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class CacheBudget {
+  private static final String TAG = CacheBudget.class.getSimpleName();
+
+  /** The key of the cache size preference. */
+  public static final String PREFERENCE_KEY = "cacheSize";
+  private static final String DEFAULT_SIZE_MB = "400";
+
+  /**
+   * Smaller cache sizes are raised to this, so that the cache still holds a
+   * few full screen photos and the responses of an album.
+   */
+  private static final int MIN_SIZE_MB = 20;
+
+  /**
+   * Returns the cache size the user configured, in megabytes.
+   */
+  public static int getCacheSizeMb(Context context) {
+    String value = PreferenceManager.getDefaultSharedPreferences(context)
+        .getString(PREFERENCE_KEY, DEFAULT_SIZE_MB);
+    int sizeMb;
+    try {
+      sizeMb = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      Log.w(TAG, "Invalid cache size: " + value);
+      return Integer.parseInt(DEFAULT_SIZE_MB);
+    }
+    if (sizeMb < MIN_SIZE_MB) {
+      Log.w(TAG, "Cache size too small: " + sizeMb + " MB");
+      return MIN_SIZE_MB;
+    }
+    return sizeMb;
+  }
+
+  /**
+   * Applies the configured cache size to the disk caches in the background on
+   * the {@link Priority#DISK_WRITE} lane. The caches evict their least recently
+   * used entries there, if they are larger.
+   */
+  public static void apply(Context context) {
+    final Context appContext = context.getApplicationContext();
+    ImageRequestDispatcher.get().execute(Priority.DISK_WRITE, new Runnable() {
+      @Override
+      public void run() {
+        long total = getCacheSizeMb(appContext) * 1024L * 1024L;
+        long responses = total / PicViewConfig.RESPONSE_CACHE_FRACTION;
+        FileSystemWebResponseCache.setMaxSize(responses);
+        FileSystemImageCache.setMaxSize(total - responses);
+      }
+    });
+  }
+
+  private CacheBudget() {
+  }
+}
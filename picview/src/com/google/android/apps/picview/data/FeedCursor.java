@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+/**
+ * Keeps a cursor that is used in the feed database.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class FeedCursor {
+  private final Cursor cursor;
+
+  public FeedCursor(Cursor cursor) {
+    this.cursor = cursor;
+  }
+
+  /**
+   * Closes the cursors, if present.
+   */
+  public void close() {
+    if (cursor != null) {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Returns all albums and closes the cursor.
+   */
+  public List<Album> getAlbumsAndClose() {
+    List<Album> result = new ArrayList<Album>();
+    if (cursor == null) {
+      return result;
+    }
+    try {
+      int columnIndexName = cursor.getColumnIndex(FeedDatabase.COLUMN_NAME);
+      int columnIndexThumbnailUrl = cursor
+          .getColumnIndex(FeedDatabase.COLUMN_THUMBNAIL_URL);
+      int columnIndexGdataUrl = cursor
+          .getColumnIndex(FeedDatabase.COLUMN_GDATA_URL);
+      while (cursor.moveToNext()) {
+        Album album = new Album();
+        album.setName(cursor.getString(columnIndexName));
+        album.setThumbnailUrl(cursor.getString(columnIndexThumbnailUrl));
+        album.setGdataUrl(cursor.getString(columnIndexGdataUrl));
+        result.add(album);
+      }
+    } finally {
+      close();
+    }
+    return result;
+  }
+
+  /**
+   * Returns all photos and closes the cursor.
+   */
+  public List<Photo> getPhotosAndClose() {
+    List<Photo> result = new ArrayList<Photo>();
+    if (cursor == null) {
+      return result;
+    }
+    try {
+      int columnIndexName = cursor.getColumnIndex(FeedDatabase.COLUMN_NAME);
+      int columnIndexThumbnailUrl = cursor
+          .getColumnIndex(FeedDatabase.COLUMN_THUMBNAIL_URL);
+      int columnIndexImageUrl = cursor
+          .getColumnIndex(FeedDatabase.COLUMN_IMAGE_URL);
+      while (cursor.moveToNext()) {
+        Photo photo = new Photo();
+        photo.setName(cursor.getString(columnIndexName));
+        photo.setThumbnailUrl(cursor.getString(columnIndexThumbnailUrl));
+        photo.setImageUrl(cursor.getString(columnIndexImageUrl));
+        result.add(photo);
+      }
+    } finally {
+      close();
+    }
+    return result;
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * A database that stores parsed feeds: the albums of an account and the photos
+ * of an album, each as a row of its own. This way a stored feed can be loaded
+ * without parsing it again, and questions like the number of photos in an
+ * album can be answered without loading them.
+ * <p>
+ * Rows are keyed by account and album and ordered by their position within
+ * the feed. Feeds are stored in pages, i.e. ranges of positions, that are
+ * stored and queried independently. A page is always replaced as a whole,
+ * within a single transaction. A page with fewer rows than it may hold is the
+ * last one, so the rows and pages stored after it are dropped.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class FeedDatabase extends AbstractPicViewDatabase {
+  private static final String TAG = FeedDatabase.class.getSimpleName();
+  private static final String DATABASE_NAME = "feed_cache.db";
+  private static final String TABLE_FEEDS = "feeds";
+  private static final String TABLE_ALBUMS = "albums";
+  private static final String TABLE_PHOTOS = "photos";
+
+  private static final String COLUMN_ACCOUNT = "account";
+  private static final String COLUMN_ALBUM = "album";
+  private static final String COLUMN_POSITION = "position";
+  private static final String COLUMN_START = "start";
+  private static final String COLUMN_COUNT = "count";
+  static final String COLUMN_NAME = "name";
+  static final String COLUMN_THUMBNAIL_URL = "thumbnail_url";
+  static final String COLUMN_GDATA_URL = "gdata_url";
+  static final String COLUMN_IMAGE_URL = "image_url";
+  private static final String[] ALBUM_COLUMNS = { COLUMN_NAME,
+      COLUMN_THUMBNAIL_URL, COLUMN_GDATA_URL };
+  private static final String[] PHOTO_COLUMNS = { COLUMN_NAME,
+      COLUMN_THUMBNAIL_URL, COLUMN_IMAGE_URL };
+
+  /** The album key of an account's feed of albums. */
+  private static final String NO_ALBUM = "";
+
+  private static final String SQL_CREATE_FEEDS = "CREATE TABLE " + TABLE_FEEDS
+      + " (" + COLUMN_ACCOUNT + " TEXT NOT NULL," + COLUMN_ALBUM
+      + " TEXT NOT NULL," + COLUMN_START + " INTEGER NOT NULL," + COLUMN_COUNT
+      + " INTEGER NOT NULL," + "PRIMARY KEY (" + COLUMN_ACCOUNT + ","
+      + COLUMN_ALBUM + "," + COLUMN_START + "," + COLUMN_COUNT + "));";
+
+  /** Selects the positions of a page, given its start and end. */
+  private static final String SQL_POSITION_RANGE = COLUMN_POSITION
+      + " >= ? AND " + COLUMN_POSITION + " < ?";
+
+  private static final String SQL_INSERT_ALBUM = "INSERT INTO " + TABLE_ALBUMS
+      + " (" + COLUMN_ACCOUNT + "," + COLUMN_POSITION + "," + COLUMN_NAME + ","
+      + COLUMN_THUMBNAIL_URL + "," + COLUMN_GDATA_URL
+      + ") VALUES (?, ?, ?, ?, ?)";
+  private static final String SQL_INSERT_PHOTO = "INSERT INTO " + TABLE_PHOTOS
+      + " (" + COLUMN_ACCOUNT + "," + COLUMN_ALBUM + "," + COLUMN_POSITION + ","
+      + COLUMN_NAME + "," + COLUMN_THUMBNAIL_URL + "," + COLUMN_IMAGE_URL
+      + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+  private static FeedDatabase feedDb;
+
+  private SQLiteDatabase db;
+
+  protected FeedDatabase(SQLiteDatabase db) {
+    this.db = db;
+  }
+
+  /**
+   * Returns the singleton instance of the {@link FeedDatabase}.
+   */
+  public static synchronized FeedDatabase get() {
+    if (feedDb == null) {
+      feedDb = new FeedDatabase(getUsableDataBase(DATABASE_NAME,
+          SQL_CREATE_FEEDS + "CREATE TABLE " + TABLE_ALBUMS + " ("
+              + COLUMN_ACCOUNT + " TEXT NOT NULL," + COLUMN_POSITION
+              + " INTEGER NOT NULL," + COLUMN_NAME + " TEXT,"
+              + COLUMN_THUMBNAIL_URL + " TEXT," + COLUMN_GDATA_URL + " TEXT,"
+              + "PRIMARY KEY (" + COLUMN_ACCOUNT + "," + COLUMN_POSITION
+              + "));" + "CREATE TABLE " + TABLE_PHOTOS + " ("
+              + COLUMN_ACCOUNT + " TEXT NOT NULL," + COLUMN_ALBUM
+              + " TEXT NOT NULL," + COLUMN_POSITION + " INTEGER NOT NULL,"
+              + COLUMN_NAME + " TEXT," + COLUMN_THUMBNAIL_URL + " TEXT,"
+              + COLUMN_IMAGE_URL + " TEXT," + "PRIMARY KEY (" + COLUMN_ACCOUNT
+              + "," + COLUMN_ALBUM + "," + COLUMN_POSITION + "));",
+          // Version 2: Feeds are stored in pages. Whole feeds stored before
+          // are dropped.
+          "DROP TABLE " + TABLE_FEEDS + ";" + SQL_CREATE_FEEDS + "DELETE FROM "
+              + TABLE_ALBUMS + ";" + "DELETE FROM " + TABLE_PHOTOS + ";",
+          // Version 3: Image URLs are sized by the feed request. The ones
+          // stored before point to the original images.
+          "DELETE FROM " + TABLE_FEEDS + ";" + "DELETE FROM " + TABLE_ALBUMS
+              + ";" + "DELETE FROM " + TABLE_PHOTOS + ";"));
+      enableWriteAheadLogging(feedDb.db);
+    }
+    return feedDb;
+  }
+
+  /**
+   * Returns a page of the stored albums of the given account, in feed order.
+   * 
+   * @param start
+   *          the position of the first album of the page
+   * @param count
+   *          the maximum number of albums on the page, or a negative value for
+   *          all albums from the start position on
+   * @return the albums, or <code>null</code> if the page has not been stored
+   */
+  public List<Album> queryAlbums(String account, int start, int count) {
+    if (!containsFeed(account, NO_ALBUM, start, count)) {
+      return null;
+    }
+    return new FeedCursor(db.query(TABLE_ALBUMS, ALBUM_COLUMNS,
+        COLUMN_ACCOUNT + " = ? AND " + SQL_POSITION_RANGE, new String[] {
+            account, String.valueOf(start), getEnd(start, count) }, null,
+        null, COLUMN_POSITION)).getAlbumsAndClose();
+  }
+
+  /**
+   * Returns a page of the stored photos of the given album, in feed order.
+   * 
+   * @param start
+   *          the position of the first photo of the page
+   * @param count
+   *          the maximum number of photos on the page, or a negative value for
+   *          all photos from the start position on
+   * @return the photos, or <code>null</code> if the page has not been stored
+   */
+  public List<Photo> queryPhotos(String account, String album, int start,
+      int count) {
+    if (!containsFeed(account, album, start, count)) {
+      return null;
+    }
+    return new FeedCursor(db.query(TABLE_PHOTOS, PHOTO_COLUMNS,
+        COLUMN_ACCOUNT + " = ? AND " + COLUMN_ALBUM + " = ? AND "
+            + SQL_POSITION_RANGE, new String[] { account, album,
+            String.valueOf(start), getEnd(start, count) }, null, null,
+        COLUMN_POSITION)).getPhotosAndClose();
+  }
+
+  /**
+   * Returns the number of stored albums of the given account.
+   */
+  public int countAlbums(String account) {
+    return (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+        + TABLE_ALBUMS + " WHERE " + COLUMN_ACCOUNT + " = ?",
+        new String[] { account });
+  }
+
+  /**
+   * Returns the number of stored photos of the given album.
+   */
+  public int countPhotos(String account, String album) {
+    return (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+        + TABLE_PHOTOS + " WHERE " + COLUMN_ACCOUNT + " = ? AND "
+        + COLUMN_ALBUM + " = ?", new String[] { account, album });
+  }
+
+  /**
+   * Replaces a page of the stored albums of the given account.
+   * 
+   * @param start
+   *          the position of the first album of the page
+   * @param count
+   *          the maximum number of albums on the page, or a negative value for
+   *          all albums from the start position on
+   * @return whether the albums were stored
+   */
+  public boolean putAlbums(String account, int start, int count,
+      List<Album> albums) {
+    // The insert is compiled once for the whole page, rather than per row.
+    SQLiteStatement insert = db.compileStatement(SQL_INSERT_ALBUM);
+    boolean last = isLastPage(count, albums.size());
+    db.beginTransaction();
+    try {
+      db.delete(TABLE_ALBUMS, COLUMN_ACCOUNT + " = ? AND "
+          + SQL_POSITION_RANGE, new String[] { account,
+          String.valueOf(start), getEnd(start, last ? -1 : count) });
+      for (int i = 0; i < albums.size(); ++i) {
+        Album album = albums.get(i);
+        insert.bindString(1, account);
+        insert.bindLong(2, start + i);
+        bindString(insert, 3, album.getName());
+        bindString(insert, 4, album.getThumbnailUrl());
+        bindString(insert, 5, album.getGdataUrl());
+        insert.executeInsert();
+      }
+      if (last) {
+        deleteFeedsAfter(account, NO_ALBUM, start + albums.size());
+      }
+      if (!putFeed(account, NO_ALBUM, start, count)) {
+        return false;
+      }
+      db.setTransactionSuccessful();
+      return true;
+    } catch (SQLException e) {
+      Log.w(TAG, "Unable to store albums: " + e.getMessage());
+      return false;
+    } finally {
+      db.endTransaction();
+      insert.close();
+    }
+  }
+
+  /**
+   * Replaces a page of the stored photos of the given album.
+   * 
+   * @param start
+   *          the position of the first photo of the page
+   * @param count
+   *          the maximum number of photos on the page, or a negative value for
+   *          all photos from the start position on
+   * @return whether the photos were stored
+   */
+  public boolean putPhotos(String account, String album, int start,
+      int count, List<Photo> photos) {
+    SQLiteStatement insert = db.compileStatement(SQL_INSERT_PHOTO);
+    boolean last = isLastPage(count, photos.size());
+    db.beginTransaction();
+    try {
+      db.delete(TABLE_PHOTOS, COLUMN_ACCOUNT + " = ? AND " + COLUMN_ALBUM
+          + " = ? AND " + SQL_POSITION_RANGE, new String[] { account, album,
+          String.valueOf(start), getEnd(start, last ? -1 : count) });
+      for (int i = 0; i < photos.size(); ++i) {
+        Photo photo = photos.get(i);
+        insert.bindString(1, account);
+        insert.bindString(2, album);
+        insert.bindLong(3, start + i);
+        bindString(insert, 4, photo.getName());
+        bindString(insert, 5, photo.getThumbnailUrl());
+        bindString(insert, 6, photo.getImageUrl());
+        insert.executeInsert();
+      }
+      if (last) {
+        deleteFeedsAfter(account, album, start + photos.size());
+      }
+      if (!putFeed(account, album, start, count)) {
+        return false;
+      }
+      db.setTransactionSuccessful();
+      Log.d(TAG, "Stored " + photos.size() + " photos of album " + album);
+      return true;
+    } catch (SQLException e) {
+      Log.w(TAG, "Unable to store photos: " + e.getMessage());
+      return false;
+    } finally {
+      db.endTransaction();
+      insert.close();
+    }
+  }
+
+  /**
+   * Returns whether this database is ready to be used.
+   */
+  public boolean isReady() {
+    return db != null;
+  }
+
+  /**
+   * Returns the position after the last one of the given page.
+   */
+  private static String getEnd(int start, int count) {
+    return String.valueOf(count < 0 ? Long.MAX_VALUE : (long) start + count);
+  }
+
+  /**
+   * Whether a page with the given number of rows is the last one of its feed,
+   * i.e. the feed ends within the page.
+   */
+  private static boolean isLastPage(int count, int size) {
+    return count < 0 || size < count;
+  }
+
+  /**
+   * Forgets the stored pages of a feed that reach beyond the given position,
+   * as the feed ends there now. Their rows after the position are already
+   * gone, so they could not be loaded anymore as a whole.
+   */
+  private void deleteFeedsAfter(String account, String album, long end) {
+    db.delete(TABLE_FEEDS, COLUMN_ACCOUNT + " = ? AND " + COLUMN_ALBUM
+        + " = ? AND (" + COLUMN_COUNT + " < 0 OR " + COLUMN_START + " + "
+        + COLUMN_COUNT + " > ?)", new String[] { account, album,
+        String.valueOf(end) });
+  }
+
+  /**
+   * Whether the given page of a feed has been stored, even if it is empty.
+   */
+  private boolean containsFeed(String account, String album, int start,
+      int count) {
+    return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+        + TABLE_FEEDS + " WHERE " + COLUMN_ACCOUNT + " = ? AND "
+        + COLUMN_ALBUM + " = ? AND " + COLUMN_START + " = ? AND "
+        + COLUMN_COUNT + " = ?", new String[] { account, album,
+        String.valueOf(start), String.valueOf(count) }) > 0;
+  }
+
+  /**
+   * Records that the given page of a feed has been stored.
+   */
+  private boolean putFeed(String account, String album, int start, int count) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_ACCOUNT, account);
+    values.put(COLUMN_ALBUM, album);
+    values.put(COLUMN_START, start);
+    values.put(COLUMN_COUNT, count);
+    return db.replace(TABLE_FEEDS, null, values) != -1;
+  }
+}
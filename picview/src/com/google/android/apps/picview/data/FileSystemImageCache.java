@@ -16,107 +16,194 @@
 
 package com.google.android.apps.picview.data;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.util.List;
 
-import android.database.sqlite.SQLiteDiskIOException;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.util.Log;
 
+import com.google.android.apps.picview.data.BitmapDecoder.Target;
+import com.google.android.apps.picview.data.JournaledDiskCache.Editor;
+import com.google.android.apps.picview.request.ImageRequestDispatcher;
+import com.google.android.apps.picview.request.ImageRequestDispatcher.Priority;
+
 /**
  * A cache which stores image data on the device storage. Uses a
- * {@link ImageDatabase} as the backend.
+ * {@link JournaledDiskCache} as the backend, which stores every image in a
+ * file of its own.
+ * <p>
+ * Images stored in the {@link ImageDatabase} by older versions are migrated
+ * in the background, the first time the cache is used.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  */
 public class FileSystemImageCache {
   private static final String TAG = FileSystemImageCache.class.getSimpleName();
+  private static final String DIRECTORY_NAME = "image_cache";
 
-  private ImageDatabase imageDb;
-
-  public FileSystemImageCache() {
-    imageDb = ImageDatabase.get();
-  }
+  private static volatile JournaledDiskCache diskCache;
+  private static boolean diskCacheOpened = false;
+  private static volatile long maxSize = Long.MAX_VALUE;
 
   /**
-   * Gets the photo with the given URL from the database.
+   * Gets the photo with the given URL from the cache.
    * 
    * @param url
    *          The {@link URL} of the photo to get.
-   * @return The {@link Bitmap} object or <code>null</code>, if the database
-   *         does not contain a Bitmap with the given URL.
+   * @param target
+   *          The target the photo is decoded for.
+   * @return The {@link Bitmap} object or <code>null</code>, if the cache does
+   *         not contain a Bitmap with the given URL.
    */
-  public Bitmap get(URL url) {
-    if (!imageDb.isReady()) {
+  public Bitmap get(URL url, Target target) {
+    JournaledDiskCache cache = getDiskCache();
+    if (cache == null) {
       return null;
     }
-    PhotoCursor c = imageDb.query(url.toString());
-
-    if (c == null) {
+    File file = cache.get(url.toString());
+    if (file == null) {
       return null;
     }
 
-    if (!c.moveToFirst()) {
-      c.close();
+    Log.i(TAG, "Reading photo from disk cache");
+    return BitmapDecoder.decode(file, target);
+  }
+
+  /**
+   * Starts writing the photo with the given URL. This way the photo can be
+   * streamed into the cache while it is downloaded. It is visible once the
+   * editor is committed.
+   * 
+   * @param url
+   *          The URL of the photo to be written.
+   * @return The editor or <code>null</code>, if the photo is already being
+   *         written or the cache is not available.
+   */
+  public Editor edit(URL url) {
+    JournaledDiskCache cache = getDiskCache();
+    if (cache == null) {
       return null;
     }
-
-    Log.i(TAG, "Reading photo from database");
-    return c.getBitmapAndClose();
+    return cache.edit(url.toString());
   }
 
   /**
-   * Stores the image with the given URL and the modified/version String.
+   * Stores the encoded photo with the given URL.
    * 
    * @param url
    *          The URL of the photo to be put.
-   * @param modified
-   *          The modified/version string.
-   * @param image
-   *          The image data.
+   * @param data
+   *          The encoded image, as it was downloaded.
+   * @return Whether the photo was stored.
    */
-  private synchronized boolean put(URL url, String modified, Bitmap image) {
-    if (!imageDb.isReady()) {
+  public boolean put(URL url, byte[] data) {
+    Editor editor = edit(url);
+    if (editor == null) {
       return false;
     }
-    Log.i(TAG, "Attempting to put " + url.toString());
-    if (imageDb.exists(url)) {
-      Log.i(TAG, "ALREADY EXISTS!");
+    try {
+      OutputStream outputStream = editor.getOutputStream();
+      outputStream.write(data);
+      return editor.commit();
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to put photo, disk full or unavailable.");
+      editor.abort();
       return false;
     }
+  }
 
-    Log.i(TAG, "Putting photo into DB.");
-    try {
-      return imageDb.put(url, modified, image) != -1;
-    } catch (SQLiteDiskIOException ex) {
-      Log.w(TAG, "Unable to put photo in DB, disk full or unavailable.");
-      return false;
+  /**
+   * Sets the maximum number of bytes all photos may take up together. If the
+   * cache is larger, the least recently used photos are evicted right away, so
+   * this must not be called on the UI thread.
+   */
+  public static void setMaxSize(long bytes) {
+    maxSize = bytes;
+    // If the cache is not open yet, the size is applied once it is opened.
+    JournaledDiskCache cache = diskCache;
+    if (cache != null) {
+      cache.setMaxSize(bytes);
+      cache.trimToSize();
     }
   }
 
   /**
-   * Same as {@link #put(URL, String, Bitmap)} but returns immediately. The
-   * actual putting is done asynchronously.
-   * 
-   * @param url
-   *          The URL of the photo to be put.
-   * @param modified
-   *          The modified/version string.
-   * @param photo
-   *          The photo data.
+   * Returns the disk cache, opening it the first time this is called.
    */
-  public void asyncPut(final URL url, final String modified, final Bitmap photo) {
-    if (!imageDb.isReady()) {
-      return;
+  private static synchronized JournaledDiskCache getDiskCache() {
+    if (!diskCacheOpened) {
+      diskCacheOpened = true;
+      try {
+        diskCache = JournaledDiskCache.open(AbstractPicViewDatabase
+            .getPathToDb(DIRECTORY_NAME));
+        diskCache.setMaxSize(maxSize);
+        diskCache.trimToSize();
+        if (ImageDatabase.existsOnDisk()) {
+          migrateImageDatabaseAsync();
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Disk cache unavailable: " + e.getMessage());
+      }
     }
+    return diskCache;
+  }
 
-    AsyncTask<Void, Integer, Void> task = new AsyncTask<Void, Integer, Void>() {
+  /**
+   * Moves all photos from the {@link ImageDatabase} into the disk cache, one
+   * row at a time, and deletes the database afterwards. Rows that cannot be
+   * read are skipped, so the migration always completes.
+   */
+  private static void migrateImageDatabaseAsync() {
+    ImageRequestDispatcher.get().execute(Priority.DISK_WRITE, new Runnable() {
       @Override
-      protected Void doInBackground(Void... params) {
-        put(url, modified, photo);
-        return null;
+      public void run() {
+        ImageDatabase imageDb = ImageDatabase.get();
+        if (!imageDb.isReady()) {
+          return;
+        }
+        FileSystemImageCache cache = new FileSystemImageCache();
+        try {
+          List<String> urls = imageDb.queryAllUrls();
+          Log.i(TAG, "Migrating " + urls.size() + " photos from database.");
+          for (String url : urls) {
+            if (diskCache.get(url) != null) {
+              continue;
+            }
+            migratePhoto(imageDb, cache, url);
+          }
+        } catch (RuntimeException e) {
+          Log.w(TAG, "Unable to read photos from database: " + e.getMessage());
+        } finally {
+          ImageDatabase.delete();
+        }
+        Log.i(TAG, "Migration done.");
       }
-    };
-    task.execute();
+    });
+  }
+
+  /**
+   * Moves a single photo from the {@link ImageDatabase} into the disk cache.
+   */
+  private static void migratePhoto(ImageDatabase imageDb,
+      FileSystemImageCache cache, String url) {
+    PhotoCursor c = null;
+    try {
+      c = imageDb.query(url);
+      if (c.moveToFirst()) {
+        cache.put(new URL(url), c.getDataAndClose());
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Skipping photo with invalid URL: " + url);
+    } catch (RuntimeException e) {
+      // E.g. as the photo is larger than the cursor window.
+      Log.w(TAG, "Skipping photo that cannot be read: " + url);
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
   }
 }
@@ -16,99 +16,213 @@
 
 package com.google.android.apps.picview.data;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
+import com.google.android.apps.picview.data.JournaledDiskCache.Editor;
 import com.google.android.apps.picview.data.WebResponseCursor.CachedWebResponse;
+import com.google.android.apps.picview.data.WriteBehindQueue.PendingWrite;
 
 /**
- * A cache that stores web responses on the device storage. It uses a
- * {@link WebResponseDatabase} as the backend.
+ * A cache that stores web responses on the device storage. The bodies are
+ * stored as they were received, each in a file of its own, by a
+ * {@link JournaledDiskCache}. This way they can be streamed in and out of the
+ * cache. Their validators are stored in a {@link WebResponseDatabase}. They
+ * are written behind, through the {@link WriteBehindQueue}.
+ * <p>
+ * Once the responses grow beyond the maximum size, the least recently used
+ * ones are evicted, along with their validators.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  */
-public class FileSystemWebResponseCache {
+public class FileSystemWebResponseCache implements WebResponseCache {
   private static final String TAG = FileSystemWebResponseCache.class
       .getSimpleName();
+  private static final String DIRECTORY_NAME = "response_cache";
+
+  private static volatile JournaledDiskCache diskCache;
+  private static boolean diskCacheOpened = false;
+  private static volatile long maxSize = Long.MAX_VALUE;
 
   private WebResponseDatabase responseDb;
+  private WriteBehindQueue writeQueue;
 
   public FileSystemWebResponseCache() {
     responseDb = WebResponseDatabase.get();
+    writeQueue = WriteBehindQueue.get();
   }
 
   /**
-   * Gets the response for the request with the given URL from the database.
+   * Gets the response for the request with the given URL.
    * 
    * @param url
    *          the request {@link URL} of the response to get
-   * @return the response or <code>null</code>, if the database does not contain
-   *         a response for the given URL
+   * @return the response, whose body can be read from its file, or
+   *         <code>null</code> if the cache does not contain a response for the
+   *         given URL
    */
+  @Override
   public CachedWebResponse get(URL url) {
-    if (!responseDb.isReady()) {
+    JournaledDiskCache cache = getDiskCache();
+    if (cache == null || !responseDb.isReady()) {
       return null;
     }
-
-    WebResponseCursor c = responseDb.query(url.toString());
-
-    if (c == null) {
+    File body = cache.get(url.toString());
+    if (body == null) {
       return null;
     }
-    if (!c.moveToFirst()) {
-      c.close();
-      return null;
+
+    CachedWebResponse validators = queryValidators(url);
+    Log.i(TAG, "Reading web response from disk cache");
+    if (validators == null) {
+      return new CachedWebResponse(null, null, body);
     }
+    return new CachedWebResponse(validators.modified, validators.etag, body);
+  }
 
-    Log.i(TAG, "Trying to read web response from database");
-    return c.getResponseAndClose();
+  /**
+   * Gets only the validators of the response for the given URL, e.g. as its
+   * content is stored elsewhere in parsed form.
+   * 
+   * @return the validators, without a body, or <code>null</code> if there are
+   *         none for the given URL
+   */
+  @Override
+  public CachedWebResponse getValidators(URL url) {
+    if (!responseDb.isReady()) {
+      return null;
+    }
+    return queryValidators(url);
   }
 
   /**
-   * Stores the response from the given URL and the modified/version String.
+   * Puts only the validators of the response for the given URL, whose content
+   * is stored elsewhere in parsed form.
    * 
-   * @param url
-   *          the URL of the request
-   * @param modified
-   *          the modified/version string
-   * @param response
-   *          the response contents
+   * @return whether the validators were queued to be stored
    */
-  private synchronized boolean put(URL url, String modified, String response) {
+  @Override
+  public boolean putValidators(URL url, String modified, String etag) {
     if (!responseDb.isReady()) {
       return false;
     }
+    writeQueue.put(url.toString(), modified, etag, null);
+    return true;
+  }
 
-    Log.i(TAG, "Putting response into DB.");
-    return responseDb.put(url, modified, response) != -1;
+  /**
+   * Starts writing the response for the given URL. This way the response can
+   * be streamed into the cache while it is downloaded. It is visible once the
+   * editor is committed through {@link #commit(URL, Editor, String, String)}.
+   * 
+   * @return the editor or <code>null</code>, if the response is already being
+   *         written or the cache is not available
+   */
+  @Override
+  public Editor edit(URL url) {
+    JournaledDiskCache cache = getDiskCache();
+    if (cache == null || !responseDb.isReady()) {
+      return null;
+    }
+    return cache.edit(url.toString());
   }
 
   /**
-   * Same as {@link #put(URL, String, String)}, but returns immediately. The
-   * actual put is done asynchronously.
+   * Commits a response that was written through the given editor, along with
+   * its validators.
    * 
    * @param url
    *          the URL of the request
+   * @param editor
+   *          the editor the response was written with
    * @param modified
    *          the modified/version string
-   * @param response
-   *          the response contents
+   * @param etag
+   *          the entity tag of the response, or <code>null</code>
+   * @return whether the response was stored
    */
-  public void asyncPut(final URL url, final String modified,
-      final String response) {
-    if (!responseDb.isReady()) {
-      return;
+  @Override
+  public boolean commit(URL url, Editor editor, String modified,
+      String etag) {
+    if (!editor.commit()) {
+      return false;
+    }
+    Log.i(TAG, "Putting response into disk cache.");
+    String entry = JournaledDiskCache.getEntryName(url.toString());
+    writeQueue.put(url.toString(), modified, etag, entry);
+    // A response larger than the cache is evicted right away, before its
+    // validators were queued.
+    if (!getDiskCache().contains(url.toString())) {
+      writeQueue.remove(entry);
+    }
+    return true;
+  }
+
+  /**
+   * Records that the server confirmed the stored response to be up to date.
+   * The validators it sent along replace the stored ones.
+   */
+  @Override
+  public void updateValidators(URL url, String modified, String etag) {
+    if (responseDb.isReady()) {
+      writeQueue.update(url.toString(), modified, etag);
+    }
+  }
+
+  /**
+   * Sets the maximum number of bytes all responses may take up together. If
+   * the cache is larger, the least recently used responses are evicted right
+   * away, so this must not be called on the UI thread.
+   */
+  public static void setMaxSize(long bytes) {
+    maxSize = bytes;
+    // If the cache is not open yet, the size is applied once it is opened.
+    JournaledDiskCache cache = diskCache;
+    if (cache != null) {
+      cache.setMaxSize(bytes);
+      cache.trimToSize();
     }
+  }
 
-    AsyncTask<Void, Integer, Void> task = new AsyncTask<Void, Integer, Void>() {
-      @Override
-      protected Void doInBackground(Void... params) {
-        put(url, modified, response);
-        return null;
+  /**
+   * Returns the validators for the given URL, including the writes that are
+   * still pending, or <code>null</code> if there are none.
+   */
+  private CachedWebResponse queryValidators(URL url) {
+    // The pending write is looked up first. Once it is gone, it has been
+    // written to the database.
+    PendingWrite pendingWrite = writeQueue.get(url.toString());
+    if (pendingWrite != null && pendingWrite.replace) {
+      return pendingWrite.applyTo(null);
+    }
+    CachedWebResponse stored = responseDb.query(url.toString());
+    return pendingWrite != null ? pendingWrite.applyTo(stored) : stored;
+  }
+
+  /**
+   * Returns the disk cache, opening it the first time this is called.
+   */
+  private static synchronized JournaledDiskCache getDiskCache() {
+    if (!diskCacheOpened) {
+      diskCacheOpened = true;
+      try {
+        diskCache = JournaledDiskCache.open(AbstractPicViewDatabase
+            .getPathToDb(DIRECTORY_NAME));
+        diskCache.setRemovalListener(new JournaledDiskCache.RemovalListener() {
+          @Override
+          public void onRemoved(String name) {
+            WriteBehindQueue.get().remove(name);
+          }
+        });
+        diskCache.setMaxSize(maxSize);
+        diskCache.trimToSize();
+      } catch (IOException e) {
+        Log.w(TAG, "Disk cache unavailable: " + e.getMessage());
       }
-    };
-    task.execute();
+    }
+    return diskCache;
   }
 }
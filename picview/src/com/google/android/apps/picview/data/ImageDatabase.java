@@ -16,15 +16,18 @@
 
 package com.google.android.apps.picview.data;
 
-import java.io.ByteArrayOutputStream;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
-import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.graphics.Bitmap;
 
 /**
- * A data base that stores image data.
+ * A data base that stores image data. Images are stored encoded, exactly as
+ * they were downloaded.
+ * <p>
+ * Images are now stored by the {@link FileSystemImageCache}. This database is
+ * only read to migrate images stored by older versions.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  */
@@ -49,7 +52,7 @@ public class ImageDatabase extends AbstractPicViewDatabase {
   /**
    * Returns the singleton instance of the {@link ImageDatabase}.
    */
-  public static ImageDatabase get() {
+  public static synchronized ImageDatabase get() {
     if (imageDb == null) {
       imageDb = new ImageDatabase(getUsableDataBase(DATABASE_NAME,
           "CREATE TABLE " + TABLE_NAME + " (" + COLUMN_URL
@@ -60,48 +63,50 @@ public class ImageDatabase extends AbstractPicViewDatabase {
   }
 
   /**
-   * Queries for a photo with the given URL.
+   * Whether the database file exists. Other than {@link #get()}, this does not
+   * create it.
    */
-  public PhotoCursor query(String url) {
-    return new PhotoCursor(db.query(true, TABLE_NAME, ALL_COLUMNS, COLUMN_URL
-        + " = '" + url + "'", null, null, null, null, null), COLUMN_BITMAP);
+  public static boolean existsOnDisk() {
+    return getPathToDb(DATABASE_NAME).exists();
   }
 
   /**
-   * Puts an image into the database.
-   * 
-   * @param url
-   *          The URL of the image.
-   * @param modified
-   *          The version key of the image.
-   * @param image
-   *          The image to store.
-   * @return The row.
+   * Closes and deletes the database.
    */
-  public long put(URL url, String modified, Bitmap image) {
-    ContentValues values = new ContentValues();
-    values.put(COLUMN_URL, url.toString());
-    values.put(COLUMN_MODIFIED, modified);
-
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    image.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-    values.put(COLUMN_BITMAP, outputStream.toByteArray());
-
-    return db.replace(TABLE_NAME, COLUMN_BITMAP, values);
+  public static synchronized void delete() {
+    if (imageDb != null && imageDb.db != null) {
+      imageDb.db.close();
+    }
+    imageDb = null;
+    getPathToDb(DATABASE_NAME).delete();
   }
 
   /**
-   * Whether an image with the given URL exists.
+   * Returns the URLs of all stored photos.
    */
-  public boolean exists(URL url) {
-    PhotoCursor c = query(url.toString());
+  public List<String> queryAllUrls() {
+    List<String> result = new ArrayList<String>();
+    Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_URL }, null, null,
+        null, null, null);
     if (c == null) {
-      return false;
+      return result;
+    }
+    try {
+      while (c.moveToNext()) {
+        result.add(c.getString(0));
+      }
+    } finally {
+      c.close();
     }
+    return result;
+  }
 
-    boolean exists = c.moveToFirst();
-    c.close();
-    return exists;
+  /**
+   * Queries for a photo with the given URL.
+   */
+  public PhotoCursor query(String url) {
+    return new PhotoCursor(db.query(true, TABLE_NAME, ALL_COLUMNS, COLUMN_URL
+        + " = ?", new String[] { url }, null, null, null, null), COLUMN_BITMAP);
   }
 
   /**
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.net.URL;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.android.apps.picview.PicViewConfig;
+
+/**
+ * An in-memory cache for decoded images. Every entry is weighed by the number
+ * of bytes its pixels occupy. Once the total exceeds the byte budget, the least
+ * recently used entries are evicted.
+ * <p>
+ * The cache holds a reference on every image in the {@link BitmapPool}, so
+ * evicted images return to the pool once no view shows them anymore.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class ImageMemoryCache {
+  private static final String TAG = ImageMemoryCache.class.getSimpleName();
+
+  private static ImageMemoryCache memoryCache;
+
+  /**
+   * Keyed by the string representation of the URL, since {@link URL#equals}
+   * and {@link URL#hashCode} might resolve the host name.
+   */
+  private final LruCache<String, Bitmap> cache;
+  private final BitmapPool bitmapPool;
+
+  protected ImageMemoryCache(int maxBytes, BitmapPool bitmapPool) {
+    this.bitmapPool = bitmapPool;
+    cache = new LruCache<String, Bitmap>(maxBytes) {
+      @Override
+      protected int sizeOf(String key, Bitmap value) {
+        return getByteCount(value);
+      }
+
+      @Override
+      protected void entryRemoved(boolean evicted, String key,
+          Bitmap oldValue, Bitmap newValue) {
+        ImageMemoryCache.this.bitmapPool.release(oldValue);
+      }
+    };
+  }
+
+  /**
+   * Returns the singleton instance of the {@link ImageMemoryCache}. Its budget
+   * is a fraction of the memory class of the device, see
+   * {@link PicViewConfig#MEMORY_CACHE_FRACTION}.
+   */
+  public static synchronized ImageMemoryCache get(Context context) {
+    if (memoryCache == null) {
+      ActivityManager activityManager = (ActivityManager) context
+          .getSystemService(Context.ACTIVITY_SERVICE);
+      int maxBytes = getMemoryClass(activityManager) * 1024 * 1024
+          / PicViewConfig.MEMORY_CACHE_FRACTION;
+      Log.d(TAG, "Memory cache size: " + maxBytes + " bytes");
+      memoryCache = new ImageMemoryCache(maxBytes, BitmapPool.get());
+    }
+    return memoryCache;
+  }
+
+  /**
+   * Returns the image with the given URL or <code>null</code>, if it is not in
+   * the cache.
+   */
+  public Bitmap get(URL url) {
+    return cache.get(url.toString());
+  }
+
+  /**
+   * Same as {@link #get(URL)}, but also adds a reference to the returned image
+   * in the {@link BitmapPool}. The caller has to release it once it does not
+   * use the image anymore.
+   */
+  public Bitmap acquire(URL url) {
+    // The pool lock makes sure the image is not evicted and pooled between the
+    // lookup and adding the reference.
+    synchronized (bitmapPool) {
+      Bitmap bitmap = cache.get(url.toString());
+      if (bitmap != null) {
+        bitmapPool.retain(bitmap);
+      }
+      return bitmap;
+    }
+  }
+
+  /**
+   * Puts an image into the cache, evicting the least recently used images if
+   * the budget is exceeded.
+   */
+  public void put(URL url, Bitmap bitmap) {
+    bitmapPool.retain(bitmap);
+    cache.put(url.toString(), bitmap);
+  }
+
+  /**
+   * Returns the number of bytes currently held by this cache.
+   */
+  public int size() {
+    return cache.size();
+  }
+
+  /**
+   * Returns the maximum number of bytes this cache holds.
+   */
+  public int maxSize() {
+    return cache.maxSize();
+  }
+
+  /**
+   * Returns the memory class of the device in megabytes. Before it can be
+   * queried, the maximum heap size is used instead.
+   */
+  private static int getMemoryClass(ActivityManager activityManager) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ECLAIR) {
+      return activityManager.getMemoryClass();
+    }
+    return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+  }
+
+  /**
+   * Returns the number of bytes the pixels of the given bitmap occupy.
+   */
+  public static int getByteCount(Bitmap bitmap) {
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+}
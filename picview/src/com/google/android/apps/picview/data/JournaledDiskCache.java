@@ -0,0 +1,555 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A cache that stores every entry in a file of its own. The files are spread
+ * over sub-directories by the hash of their key.
+ * <p>
+ * The cache keeps track of the size of all entries and of the order in which
+ * they were accessed. Once the size exceeds the maximum, the least recently
+ * used entries are evicted.
+ * <p>
+ * An entry is first written to a temporary file, which is renamed once it is
+ * complete. Every change is then appended to a journal, which is read into an
+ * in-memory index when the cache is opened. This way an entry is either
+ * complete or absent after a crash.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class JournaledDiskCache {
+  private static final String TAG = JournaledDiskCache.class.getSimpleName();
+
+  private static final String JOURNAL_FILE = "journal";
+  private static final String JOURNAL_FILE_TMP = "journal.tmp";
+  private static final String MAGIC = "picview.journal";
+  private static final String VERSION = "1";
+
+  /** An entry is being written. */
+  private static final String DIRTY = "DIRTY";
+  /** An entry was written completely. Followed by its size. */
+  private static final String CLEAN = "CLEAN";
+  /** An entry was removed, or writing it was aborted. */
+  private static final String REMOVE = "REMOVE";
+  /** An entry was read, which makes it the most recently used one. */
+  private static final String READ = "READ";
+
+  /** The journal is compacted, once it has this many redundant lines. */
+  private static final int COMPACT_THRESHOLD = 2000;
+
+  /**
+   * Is notified when entries are removed, e.g. to drop data kept about them
+   * elsewhere.
+   */
+  public interface RemovalListener {
+    /**
+     * Called when the entry with the given name was evicted or removed. The
+     * name is the one {@link JournaledDiskCache#getEntryName(String)} returns.
+     * Called while the cache is locked, so it must not call back into it.
+     */
+    public void onRemoved(String name);
+  }
+
+  /**
+   * Writes a single entry. The entry becomes visible only once it is committed.
+   */
+  public class Editor {
+    private final String name;
+    private final File tmpFile;
+    private final FileOutputStream outputStream;
+    private boolean done = false;
+
+    private Editor(String name, File tmpFile) throws IOException {
+      this.name = name;
+      this.tmpFile = tmpFile;
+      this.outputStream = new FileOutputStream(tmpFile);
+    }
+
+    /**
+     * Returns the stream to write the content of the entry to.
+     */
+    public OutputStream getOutputStream() {
+      return outputStream;
+    }
+
+    /**
+     * Returns the file the content is written to. It can be read once all
+     * content is written, until the editor is committed or aborted.
+     */
+    public File getFile() {
+      return tmpFile;
+    }
+
+    /**
+     * Makes the written content visible as the entry.
+     * 
+     * @return Whether the entry was stored.
+     */
+    public boolean commit() {
+      if (done) {
+        return false;
+      }
+      done = true;
+      try {
+        // The journal must not call the entry clean before it is on disk.
+        outputStream.getFD().sync();
+        outputStream.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Could not write cache entry.");
+        completeEdit(this, false);
+        return false;
+      }
+      return completeEdit(this, true);
+    }
+
+    /**
+     * Discards the written content. Calling this after {@link #commit()} has no
+     * effect.
+     */
+    public void abort() {
+      if (done) {
+        return;
+      }
+      done = true;
+      try {
+        outputStream.close();
+      } catch (IOException e) {
+        // We are throwing the content away anyway.
+      }
+      completeEdit(this, false);
+    }
+  }
+
+  private final File directory;
+  private final File journalFile;
+
+  /** The size of every entry by its name, the least recently used first. */
+  private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(
+      16, 0.75f, true);
+
+  /** The names of the entries that are currently being written. */
+  private final HashSet<String> editing = new HashSet<String>();
+
+  private Writer journalWriter;
+  private RemovalListener removalListener;
+  private int redundantOpCount = 0;
+  private long size = 0;
+  private long maxSize = Long.MAX_VALUE;
+
+  private JournaledDiskCache(File directory) {
+    this.directory = directory;
+    this.journalFile = new File(directory, JOURNAL_FILE);
+  }
+
+  /**
+   * Opens the cache in the given directory, creating it if it does not exist
+   * yet.
+   * 
+   * @throws IOException
+   *           if the directory can not be used
+   */
+  public static JournaledDiskCache open(File directory) throws IOException {
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    JournaledDiskCache cache = new JournaledDiskCache(directory);
+    if (cache.journalFile.exists()) {
+      try {
+        cache.readJournal();
+        cache.deleteUntrackedFiles();
+        cache.journalWriter = cache.openJournalWriter(true);
+        return cache;
+      } catch (IOException e) {
+        Log.w(TAG, "Journal is corrupt, starting with an empty cache.");
+        deleteContents(directory);
+        cache.index.clear();
+        cache.size = 0;
+      }
+    }
+    cache.rebuildJournal();
+    return cache;
+  }
+
+  /**
+   * Returns the file of the entry with the given key or <code>null</code>, if
+   * there is no such entry. The file must not be modified.
+   */
+  public synchronized File get(String key) {
+    String name = hashKey(key);
+    if (!index.containsKey(name)) {
+      return null;
+    }
+    File file = getEntryFile(name);
+    if (!file.exists()) {
+      Log.w(TAG, "Cache entry vanished: " + name);
+      removeEntry(name);
+      return null;
+    }
+    redundantOpCount++;
+    writeJournalLine(READ + " " + name);
+    return file;
+  }
+
+  /**
+   * Returns whether there is an entry with the given key. Unlike
+   * {@link #get(String)}, this does not count as an access.
+   */
+  public synchronized boolean contains(String key) {
+    return index.containsKey(hashKey(key));
+  }
+
+  /**
+   * Starts writing the entry with the given key.
+   * 
+   * @return The editor or <code>null</code>, if the entry is already being
+   *         written or could not be created.
+   */
+  public synchronized Editor edit(String key) {
+    String name = hashKey(key);
+    if (editing.contains(name)) {
+      return null;
+    }
+    File entryFile = getEntryFile(name);
+    File parent = entryFile.getParentFile();
+    if (!parent.exists() && !parent.mkdirs()) {
+      Log.w(TAG, "Could not create " + parent);
+      return null;
+    }
+    try {
+      Editor editor = new Editor(name, getTmpFile(name));
+      editing.add(name);
+      writeJournalLine(DIRTY + " " + name);
+      return editor;
+    } catch (IOException e) {
+      Log.w(TAG, "Could not create cache entry: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Removes the entry with the given key.
+   * 
+   * @return Whether there was such an entry.
+   */
+  public synchronized boolean remove(String key) {
+    String name = hashKey(key);
+    if (!index.containsKey(name) || editing.contains(name)) {
+      return false;
+    }
+    getEntryFile(name).delete();
+    removeEntry(name);
+    return true;
+  }
+
+  /**
+   * Sets the listener that is notified when entries are removed.
+   */
+  public synchronized void setRemovalListener(RemovalListener listener) {
+    this.removalListener = listener;
+  }
+
+  /**
+   * Sets the maximum number of bytes all entries may take up together. Call
+   * {@link #trimToSize()} to evict entries, if the cache is already larger.
+   */
+  public synchronized void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Evicts the least recently used entries, until the cache is not larger than
+   * its maximum size. Entries that are being written are skipped.
+   */
+  public synchronized void trimToSize() {
+    if (size <= maxSize) {
+      return;
+    }
+    Iterator<String> names = new ArrayList<String>(index.keySet()).iterator();
+    while (size > maxSize && names.hasNext()) {
+      String name = names.next();
+      if (!editing.contains(name)) {
+        getEntryFile(name).delete();
+        removeEntry(name);
+      }
+    }
+    Log.i(TAG, "Trimmed cache to " + size + " bytes.");
+  }
+
+  /**
+   * Returns the number of entries in this cache.
+   */
+  public synchronized int getEntryCount() {
+    return index.size();
+  }
+
+  /**
+   * Returns the number of bytes of all entries in this cache.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Closes the journal. The cache must not be used afterwards.
+   */
+  public synchronized void close() {
+    try {
+      journalWriter.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not close journal.");
+    }
+  }
+
+  private synchronized boolean completeEdit(Editor editor, boolean success) {
+    editing.remove(editor.name);
+    File entryFile = getEntryFile(editor.name);
+    if (success && editor.tmpFile.renameTo(entryFile)) {
+      Long oldSize = index.put(editor.name, entryFile.length());
+      if (oldSize != null) {
+        size -= oldSize;
+        redundantOpCount++;
+      }
+      size += entryFile.length();
+      writeJournalLine(CLEAN + " " + editor.name + " " + entryFile.length());
+      trimToSize();
+      return true;
+    }
+
+    editor.tmpFile.delete();
+    if (index.containsKey(editor.name)) {
+      // The entry written before is kept, and so is its clean line. Only the
+      // dirty line became redundant.
+      redundantOpCount++;
+    } else {
+      writeJournalLine(REMOVE + " " + editor.name);
+      redundantOpCount += 2;
+    }
+    return false;
+  }
+
+  private void removeEntry(String name) {
+    Long oldSize = index.remove(name);
+    if (oldSize != null) {
+      size -= oldSize;
+    }
+    writeJournalLine(REMOVE + " " + name);
+    redundantOpCount += 2;
+    if (removalListener != null) {
+      removalListener.onRemoved(name);
+    }
+  }
+
+  private void writeJournalLine(String line) {
+    try {
+      journalWriter.write(line + "\n");
+      journalWriter.flush();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write journal: " + e.getMessage());
+    }
+    if (redundantOpCount >= COMPACT_THRESHOLD
+        && redundantOpCount >= index.size()) {
+      try {
+        rebuildJournal();
+      } catch (IOException e) {
+        Log.w(TAG, "Could not compact journal: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads the journal into the index. Entries that were being written when the
+   * journal was last closed are deleted.
+   */
+  private void readJournal() throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(journalFile), "US-ASCII"));
+    try {
+      if (!(MAGIC + " " + VERSION).equals(reader.readLine())) {
+        throw new IOException("Unexpected journal header");
+      }
+
+      HashSet<String> dirty = new HashSet<String>();
+      int lineCount = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineCount++;
+        String[] parts = line.split(" ");
+        if (parts.length == 3 && parts[0].equals(CLEAN)) {
+          index.put(parts[1], Long.parseLong(parts[2]));
+          dirty.remove(parts[1]);
+        } else if (parts.length == 2 && parts[0].equals(DIRTY)) {
+          dirty.add(parts[1]);
+        } else if (parts.length == 2 && parts[0].equals(READ)) {
+          // Moves the entry to the end of the access order.
+          index.get(parts[1]);
+        } else if (parts.length == 2 && parts[0].equals(REMOVE)) {
+          index.remove(parts[1]);
+          dirty.remove(parts[1]);
+        } else {
+          // The last line might have been cut off by a crash.
+          Log.w(TAG, "Ignoring journal line: " + line);
+        }
+      }
+
+      for (String name : dirty) {
+        getTmpFile(name).delete();
+      }
+      for (Long entrySize : index.values()) {
+        size += entrySize;
+      }
+      redundantOpCount = lineCount - index.size();
+    } catch (NumberFormatException e) {
+      throw new IOException("Corrupt journal line");
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Deletes the files of entries that are not in the index, e.g. as they were
+   * left behind by older versions. They would not count towards the size of
+   * the cache and would never be evicted. Must only be called while no entry
+   * is being written.
+   */
+  private void deleteUntrackedFiles() {
+    File[] subDirectories = directory.listFiles();
+    if (subDirectories == null) {
+      return;
+    }
+    for (File subDirectory : subDirectories) {
+      File[] files = subDirectory.listFiles();
+      if (files == null) {
+        // Not a directory, e.g. the journal.
+        continue;
+      }
+      for (File file : files) {
+        if (!index.containsKey(file.getName())) {
+          Log.i(TAG, "Deleting untracked file: " + file.getName());
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes a new journal that only contains the current entries and replaces
+   * the old journal with it.
+   */
+  private void rebuildJournal() throws IOException {
+    if (journalWriter != null) {
+      journalWriter.close();
+    }
+
+    File tmpJournal = new File(directory, JOURNAL_FILE_TMP);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(tmpJournal), "US-ASCII"));
+    try {
+      writer.write(MAGIC + " " + VERSION + "\n");
+      for (String name : editing) {
+        writer.write(DIRTY + " " + name + "\n");
+      }
+      for (Map.Entry<String, Long> entry : index.entrySet()) {
+        writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue()
+            + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+    if (!tmpJournal.renameTo(journalFile)) {
+      throw new IOException("Could not replace journal");
+    }
+    redundantOpCount = 0;
+    journalWriter = openJournalWriter(true);
+  }
+
+  private Writer openJournalWriter(boolean append) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+        journalFile, append), "US-ASCII"));
+  }
+
+  private File getEntryFile(String name) {
+    return new File(new File(directory, name.substring(0, 2)), name);
+  }
+
+  private File getTmpFile(String name) {
+    return new File(new File(directory, name.substring(0, 2)), name + ".tmp");
+  }
+
+  /**
+   * Returns the name of the entry for the given key. Entries are only known
+   * by their names, their keys are not stored.
+   */
+  public static String getEntryName(String key) {
+    return hashKey(key);
+  }
+
+  /**
+   * Returns the name of the entry for the given key, which is the hex encoded
+   * MD5 hash of the key.
+   */
+  private static String hashKey(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(
+          key.getBytes("UTF-8"));
+      StringBuilder builder = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+        builder.append(Character.forDigit(b & 0xf, 16));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void deleteContents(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        deleteContents(file);
+      }
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache that holds a limited number of values. Every entry is weighed by
+ * {@link #sizeOf(Object, Object)}. Once the total exceeds the maximum size,
+ * the least recently used entries are evicted.
+ * <p>
+ * This works like {@link android.util.LruCache}, which is only available from
+ * API level 12 on.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ * 
+ * @param <K>
+ *          the type of the keys
+ * @param <V>
+ *          the type of the values
+ */
+public class LruCache<K, V> {
+  /** The entries, the least recently used first. */
+  private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f,
+      true);
+  private final int maxSize;
+  private int size = 0;
+
+  /**
+   * Creates a new cache.
+   * 
+   * @param maxSize
+   *          the maximum total size of the entries, as weighed by
+   *          {@link #sizeOf(Object, Object)}
+   */
+  public LruCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the value for the given key, which makes it the most recently used
+   * one, or <code>null</code> if it is not in the cache.
+   */
+  public final synchronized V get(K key) {
+    return map.get(key);
+  }
+
+  /**
+   * Puts a value into the cache, evicting the least recently used entries if
+   * the maximum size is exceeded.
+   * 
+   * @return the value that was replaced, or <code>null</code>
+   */
+  public final V put(K key, V value) {
+    V previous;
+    synchronized (this) {
+      size += sizeOf(key, value);
+      previous = map.put(key, value);
+      if (previous != null) {
+        size -= sizeOf(key, previous);
+      }
+    }
+    if (previous != null) {
+      entryRemoved(false, key, previous, value);
+    }
+    trimToSize();
+    return previous;
+  }
+
+  /**
+   * Returns the total size of the entries in this cache.
+   */
+  public final synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns the maximum total size of the entries in this cache.
+   */
+  public final int maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns the size of the given entry. By default every entry has a size of
+   * 1, so the maximum size is the maximum number of entries.
+   */
+  protected int sizeOf(K key, V value) {
+    return 1;
+  }
+
+  /**
+   * Called when an entry was evicted or replaced. This is called without
+   * holding the lock of the cache. By default this does nothing.
+   * 
+   * @param evicted
+   *          whether the entry was evicted to make room, rather than replaced
+   * @param newValue
+   *          the value that replaced the entry, or <code>null</code>
+   */
+  protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+  }
+
+  private void trimToSize() {
+    while (true) {
+      K key;
+      V value;
+      synchronized (this) {
+        if (size <= maxSize || map.isEmpty()) {
+          return;
+        }
+        Map.Entry<K, V> eldest = map.entrySet().iterator().next();
+        key = eldest.getKey();
+        value = eldest.getValue();
+        map.remove(key);
+        size -= sizeOf(key, value);
+      }
+      entryRemoved(true, key, value, null);
+    }
+  }
+}
@@ -16,24 +16,21 @@
 
 package com.google.android.apps.picview.data;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.Serializable;
-import java.io.StreamCorruptedException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.xml.sax.SAXException;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
+import android.text.TextUtils;
 import android.util.Xml;
 
 import com.google.android.apps.picview.data.parser.PicasaPhotosSaxHandler;
+import com.google.android.apps.picview.request.ResponseParser.PartialResultListener;
 
 /**
  * The Photo data object containing all information about a photo.
@@ -45,18 +42,11 @@ public class Photo implements Serializable, Parcelable {
 
   public static final Parcelable.Creator<Photo> CREATOR = new Parcelable.Creator<Photo>() {
     public Photo createFromParcel(Parcel in) {
-      try {
-        ObjectInputStream inputStream = new ObjectInputStream(
-            new ByteArrayInputStream(in.createByteArray()));
-        return (Photo) inputStream.readObject();
-      } catch (StreamCorruptedException e) {
-        e.printStackTrace();
-      } catch (IOException e) {
-        e.printStackTrace();
-      } catch (ClassNotFoundException e) {
-        e.printStackTrace();
-      }
-      return null;
+      Photo photo = new Photo();
+      photo.name = in.readString();
+      photo.thumbnailUrl = in.readString();
+      photo.imageUrl = in.readString();
+      return photo;
     }
 
     public Photo[] newArray(int size) {
@@ -69,26 +59,22 @@ public class Photo implements Serializable, Parcelable {
   private String imageUrl;
 
   /**
-   * Parses photos XML (a list of photo; the contents of an album).
+   * Parses photos XML (a list of photo; the contents of an album). The XML is
+   * parsed while it is read from the stream.
    * 
-   * @param xmlStr
-   *          the photo XML
+   * @param xml
+   *          the photo XML, encoded as UTF-8
+   * @param listener
+   *          notified of batches of photos while the rest of the XML is still
+   *          parsed, may be <code>null</code>
    * @return a list of {@link Photo}s
    */
-  public static List<Photo> parseFromPicasaXml(String xmlStr) {
-    PicasaPhotosSaxHandler handler = new PicasaPhotosSaxHandler();
-    try {
-      // The Parser somehow has some trouble with a plus sign in the
-      // content. This is a hack to fix this.
-      // TODO: Maybe we should replace all these special characters with
-      // XML entities?
-      xmlStr = xmlStr.replace("+", "&#43;");
-      Xml.parse(xmlStr, handler);
-      return handler.getPhotos();
-    } catch (SAXException e) {
-      Log.e("Photo", e.getMessage(), e);
-    }
-    return new ArrayList<Photo>();
+  public static List<Photo> parseFromPicasaXml(InputStream xml,
+      PartialResultListener<List<Photo>> listener) throws IOException,
+      SAXException {
+    PicasaPhotosSaxHandler handler = new PicasaPhotosSaxHandler(listener);
+    Xml.parse(xml, Xml.Encoding.UTF_8, handler);
+    return handler.getPhotos();
   }
 
   /**
@@ -120,45 +106,34 @@ public class Photo implements Serializable, Parcelable {
   }
 
   /**
-   * Returns the URL of a medium resolution version the photo that can be used
-   * to be shown on the screen.
-   * <p>
-   * TODO(haeberling): This is Picasa specific, this should be made more
-   * general.
-   */
-  public String getMediumImageUrl(int photoSizeLongSide) {
-    int pos = imageUrl.lastIndexOf('/');
-    return imageUrl.substring(0, pos + 1) + 's' + photoSizeLongSide
-        + imageUrl.substring(pos);
-  }
-
-  /**
-   * Returns the URL to the highest resolution version of the photo.
+   * Returns the URL of the photo in the size it is shown at. The size is
+   * chosen when requesting the feed.
    */
-  public String getFullImageUrl() {
+  public String getImageUrl() {
     return imageUrl;
   }
 
   /**
-   * Sets the URL to the highest resolution version of the photo.
+   * Sets the URL of the photo in the size it is shown at.
    */
   public void setImageUrl(String imageUrl) {
     this.imageUrl = imageUrl;
   }
 
-  /**
-   * Returns the serialized Photo object.
-   */
-  public byte[] convertToBytes() {
-    try {
-      ByteArrayOutputStream result = new ByteArrayOutputStream();
-      ObjectOutputStream output = new ObjectOutputStream(result);
-      output.writeObject(this);
-      return result.toByteArray();
-    } catch (IOException e) {
-      e.printStackTrace();
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Photo)) {
+      return false;
     }
-    return null;
+    Photo other = (Photo) o;
+    return TextUtils.equals(name, other.name)
+        && TextUtils.equals(thumbnailUrl, other.thumbnailUrl)
+        && TextUtils.equals(imageUrl, other.imageUrl);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(new Object[] { name, thumbnailUrl, imageUrl });
   }
 
   @Override
@@ -168,6 +143,9 @@ public class Photo implements Serializable, Parcelable {
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
-    dest.writeByteArray(convertToBytes());
+    // Field by field, in the order they are read by the CREATOR.
+    dest.writeString(name);
+    dest.writeString(thumbnailUrl);
+    dest.writeString(imageUrl);
   }
 }
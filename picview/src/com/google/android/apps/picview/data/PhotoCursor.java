@@ -17,8 +17,6 @@
 package com.google.android.apps.picview.data;
 
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
 /**
  * Keeps a cursor that is used in the image database.
@@ -44,9 +42,12 @@ public class PhotoCursor {
     }
   }
 
-  public Bitmap getBitmapAndClose() {
+  /**
+   * Returns the encoded image and closes the cursor.
+   */
+  public byte[] getDataAndClose() {
     byte[] data = cursor.getBlob(cursor.getColumnIndex(columnBitmap));
     close();
-    return BitmapFactory.decodeByteArray(data, 0, data.length);
+    return data;
   }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.net.URL;
+
+import com.google.android.apps.picview.data.JournaledDiskCache.Editor;
+import com.google.android.apps.picview.data.WebResponseCursor.CachedWebResponse;
+
+/**
+ * Stores web responses along with their validators, so the
+ * {@link com.google.android.apps.picview.request.CachedWebRequestFetcher} can
+ * revalidate them.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public interface WebResponseCache {
+
+  /**
+   * Returns the stored response for the given URL, whose body can be read from
+   * its file, or <code>null</code> if there is none.
+   */
+  public CachedWebResponse get(URL url);
+
+  /**
+   * Returns only the validators of the response for the given URL, without a
+   * body, or <code>null</code> if there are none.
+   */
+  public CachedWebResponse getValidators(URL url);
+
+  /**
+   * Stores only the validators of the response for the given URL, whose
+   * content is stored elsewhere.
+   */
+  public boolean putValidators(URL url, String modified, String etag);
+
+  /**
+   * Starts writing the response for the given URL, or returns
+   * <code>null</code> if it cannot be stored right now.
+   */
+  public Editor edit(URL url);
+
+  /**
+   * Commits the response written with the given editor, along with its
+   * validators, and returns whether it was stored.
+   */
+  public boolean commit(URL url, Editor editor, String modified, String etag);
+
+  /**
+   * Replaces the validators of the stored response for the given URL. Those
+   * that are <code>null</code> are kept.
+   */
+  public void updateValidators(URL url, String modified, String etag);
+}
@@ -16,6 +16,8 @@
 
 package com.google.android.apps.picview.data;
 
+import java.io.File;
+
 import android.database.Cursor;
 import android.util.Log;
 
@@ -27,28 +29,31 @@ import android.util.Log;
 public class WebResponseCursor {
 
   /**
-   * A response and its modified timestamp.
+   * A response's modified timestamp, its entity tag and the file holding its
+   * body.
    */
   public static class CachedWebResponse {
     public final String modified;
-    public final String response;
+    public final String etag;
+    public final File body;
 
-    public CachedWebResponse(String modified, String response) {
+    public CachedWebResponse(String modified, String etag, File body) {
       this.modified = modified;
-      this.response = response;
+      this.etag = etag;
+      this.body = body;
     }
   }
 
   private static final String TAG = WebResponseCursor.class.getSimpleName();
   private final Cursor cursor;
   private final String columnModified;
-  private final String columnResponse;
+  private final String columnEtag;
 
   public WebResponseCursor(Cursor cursor, String columnModified,
-      String columnResponse) {
+      String columnEtag) {
     this.cursor = cursor;
     this.columnModified = columnModified;
-    this.columnResponse = columnResponse;
+    this.columnEtag = columnEtag;
   }
 
   public boolean moveToFirst() {
@@ -68,15 +73,10 @@ public class WebResponseCursor {
     }
     try {
       String modified = cursor.getString(cursor.getColumnIndex(columnModified));
-      String response = cursor.getString(cursor.getColumnIndex(columnResponse));
-      return new CachedWebResponse(modified, response);
-    } catch (IllegalStateException ex) {
-      // TODO(haeberling): This sometimes happens, e.g. with Tray's portfolio,
-      // when the reply is really big.
-      ex.printStackTrace();
+      String etag = cursor.getString(cursor.getColumnIndex(columnEtag));
+      return new CachedWebResponse(modified, etag, null);
     } finally {
       cursor.close();
     }
-    return null;
   }
 }
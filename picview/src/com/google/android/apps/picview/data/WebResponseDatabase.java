@@ -16,14 +16,28 @@
 
 package com.google.android.apps.picview.data;
 
-import java.net.URL;
+import java.util.Map;
+import java.util.Set;
 
-import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.google.android.apps.picview.data.WebResponseCursor.CachedWebResponse;
+import com.google.android.apps.picview.data.WriteBehindQueue.PendingWrite;
 
 /**
- * A database that stores responses from HTTP requests, along with their last
- * modified date.
+ * A database that stores the validators of HTTP responses: their last
+ * modified date and entity tag, which are used to revalidate them. The
+ * responses themselves are stored in files by the
+ * {@link FileSystemWebResponseCache}.
+ * <p>
+ * Validators are written through the {@link WriteBehindQueue}, in batches.
+ * Rows are looked up by the hash of their URL, which is indexed, and then by
+ * the URL itself, as hashes may collide.
+ * <p>
+ * Rows of responses stored in files know the name of their file entry, so
+ * they are deleted along with it.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  */
@@ -32,14 +46,50 @@ public class WebResponseDatabase extends AbstractPicViewDatabase {
   private static final String TABLE_NAME = "requests";
 
   private static final String COLUMN_URL = "url";
+  private static final String COLUMN_URL_HASH = "url_hash";
   private static final String COLUMN_MODIFIED = "modified";
+  private static final String COLUMN_ETAG = "etag";
   private static final String COLUMN_RESPONSE = "response";
-  private static final String[] ALL_COLUMNS = { COLUMN_URL, COLUMN_MODIFIED,
-      COLUMN_RESPONSE };
+  private static final String COLUMN_SIZE = "size";
+  private static final String COLUMN_LAST_ACCESS = "last_access";
+  private static final String COLUMN_ENTRY = "entry";
+
+  private static final String SQL_CREATE_URL_HASH_INDEX = "CREATE INDEX "
+      + TABLE_NAME + "_" + COLUMN_URL_HASH + " ON " + TABLE_NAME + " ("
+      + COLUMN_URL_HASH + ");";
+  private static final String SQL_CREATE_ENTRY_INDEX = "CREATE INDEX "
+      + TABLE_NAME + "_" + COLUMN_ENTRY + " ON " + TABLE_NAME + " ("
+      + COLUMN_ENTRY + ");";
+
+  /** Selects the row of a URL, given its hash and the URL itself. */
+  private static final String SQL_WHERE_URL = COLUMN_URL_HASH + " = ? AND "
+      + COLUMN_URL + " = ?";
+  /**
+   * Header values cannot contain line breaks, so a single line break
+   * separates the validators in the result of {@link #SQL_QUERY}.
+   */
+  private static final char VALIDATOR_SEPARATOR = '\n';
+  /**
+   * Selects both validators of a URL as a single string, so that a compiled
+   * statement can return them. Missing ones are empty.
+   */
+  private static final String SQL_QUERY = "SELECT IFNULL(" + COLUMN_MODIFIED
+      + ", '') || '" + VALIDATOR_SEPARATOR + "' || IFNULL(" + COLUMN_ETAG
+      + ", '') FROM " + TABLE_NAME + " WHERE " + SQL_WHERE_URL;
+  private static final String SQL_PUT = "INSERT OR REPLACE INTO " + TABLE_NAME
+      + " (" + COLUMN_URL + "," + COLUMN_URL_HASH + "," + COLUMN_MODIFIED + ","
+      + COLUMN_ETAG + "," + COLUMN_ENTRY + ") VALUES (?, ?, ?, ?, ?)";
+  private static final String SQL_UPDATE_VALIDATORS = "UPDATE " + TABLE_NAME
+      + " SET " + COLUMN_MODIFIED + " = COALESCE(?, " + COLUMN_MODIFIED + "),"
+      + COLUMN_ETAG + " = COALESCE(?, " + COLUMN_ETAG + ") WHERE "
+      + SQL_WHERE_URL;
+  private static final String SQL_DELETE_ENTRY = "DELETE FROM " + TABLE_NAME
+      + " WHERE " + COLUMN_ENTRY + " = ?";
 
   private static WebResponseDatabase responseDb;
 
   private SQLiteDatabase db;
+  private SQLiteStatement queryStatement;
 
   protected WebResponseDatabase(SQLiteDatabase db) {
     this.db = db;
@@ -48,53 +98,108 @@ public class WebResponseDatabase extends AbstractPicViewDatabase {
   /**
    * Returns the singleton instance of the {@link ImageDatabase}.
    */
-  public static WebResponseDatabase get() {
+  public static synchronized WebResponseDatabase get() {
     if (responseDb == null) {
       responseDb = new WebResponseDatabase(getUsableDataBase(DATABASE_NAME,
           "CREATE TABLE " + TABLE_NAME + " (" + COLUMN_URL
-              + " TEXT PRIMARY KEY," + COLUMN_MODIFIED + " TEXT,"
-              + COLUMN_RESPONSE + " TEXT);"));
+              + " TEXT PRIMARY KEY," + COLUMN_URL_HASH + " INTEGER,"
+              + COLUMN_MODIFIED + " TEXT," + COLUMN_ETAG + " TEXT,"
+              + COLUMN_ENTRY + " TEXT);" + SQL_CREATE_URL_HASH_INDEX
+              + SQL_CREATE_ENTRY_INDEX,
+          // Version 2: Size and last access.
+          "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_SIZE
+              + " INTEGER DEFAULT 0;" + "ALTER TABLE " + TABLE_NAME
+              + " ADD COLUMN " + COLUMN_LAST_ACCESS + " INTEGER DEFAULT 0;"
+              + "UPDATE " + TABLE_NAME + " SET " + COLUMN_SIZE + " = LENGTH("
+              + COLUMN_RESPONSE + ");",
+          // Version 3: Entity tag.
+          "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_ETAG
+              + " TEXT;",
+          // Version 4: The responses moved into files. The rows that still
+          // hold them are dropped, the columns stay unused.
+          "DELETE FROM " + TABLE_NAME + ";",
+          // Version 5: Rows are looked up by the hash of their URL. The ones
+          // stored before have none and are dropped. Their responses are
+          // fetched unconditionally the next time.
+          "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_URL_HASH
+              + " INTEGER;" + SQL_CREATE_URL_HASH_INDEX + "DELETE FROM "
+              + TABLE_NAME + ";",
+          // Version 6: Rows know the file entry of their response. The ones
+          // stored before do not and are dropped, like in version 5.
+          "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_ENTRY
+              + " TEXT;" + SQL_CREATE_ENTRY_INDEX + "DELETE FROM "
+              + TABLE_NAME + ";"));
+      enableWriteAheadLogging(responseDb.db);
     }
     return responseDb;
   }
 
   /**
-   * Queries for a photo with the given URL.
-   */
-  public WebResponseCursor query(String url) {
-    return new WebResponseCursor(db.query(true, TABLE_NAME, ALL_COLUMNS,
-        COLUMN_URL + " = '" + url + "'", null, null, null, null, null),
-        COLUMN_MODIFIED, COLUMN_RESPONSE);
-  }
-
-  /**
-   * Puts a response into the database.
+   * Queries for the validators of the response with the given URL.
    * 
-   * @param url
-   *          the request URL
-   * @param modified
-   *          the version key of the response, usually a date string
-   * @param response
-   *          the web response of the request to store
-   * @return the row
+   * @return the validators, without a body, or <code>null</code> if there is
+   *         no row for the given URL
    */
-  public long put(URL url, String modified, String response) {
-    ContentValues values = new ContentValues();
-    values.put(COLUMN_URL, url.toString());
-    values.put(COLUMN_MODIFIED, modified);
-    values.put(COLUMN_RESPONSE, response);
-
-    return db.replace(TABLE_NAME, COLUMN_RESPONSE, values);
+  public synchronized CachedWebResponse query(String url) {
+    // The statement is compiled once. Lookups only bind the URL and its hash,
+    // and do not need a cursor.
+    if (queryStatement == null) {
+      queryStatement = db.compileStatement(SQL_QUERY);
+    }
+    queryStatement.bindLong(1, hash(url));
+    queryStatement.bindString(2, url);
+    String validators;
+    try {
+      validators = queryStatement.simpleQueryForString();
+    } catch (SQLiteDoneException e) {
+      return null;
+    }
+    int separator = validators.indexOf(VALIDATOR_SEPARATOR);
+    return new CachedWebResponse(emptyToNull(validators.substring(0,
+        separator)), emptyToNull(validators.substring(separator + 1)), null);
   }
 
   /**
-   * Whether a response with the given URL exists.
+   * Deletes the rows of the given file entries and writes the given validators,
+   * keyed by their request URL, within a single transaction.
    */
-  public boolean exists(URL url) {
-    WebResponseCursor c = query(url.toString());
-    boolean exists = c.moveToFirst();
-    c.close();
-    return exists;
+  void writeAll(Set<String> removedEntries, Map<String, PendingWrite> writes) {
+    // Each statement is compiled once per batch, rather than once per row.
+    SQLiteStatement delete = db.compileStatement(SQL_DELETE_ENTRY);
+    SQLiteStatement put = db.compileStatement(SQL_PUT);
+    SQLiteStatement update = db.compileStatement(SQL_UPDATE_VALIDATORS);
+    db.beginTransaction();
+    try {
+      for (String entry : removedEntries) {
+        delete.bindString(1, entry);
+        delete.execute();
+      }
+      for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+        String url = entry.getKey();
+        PendingWrite write = entry.getValue();
+        if (write.replace) {
+          put.bindString(1, url);
+          put.bindLong(2, hash(url));
+          bindString(put, 3, write.modified);
+          bindString(put, 4, write.etag);
+          bindString(put, 5, write.entry);
+          put.execute();
+        } else if (write.modified != null || write.etag != null) {
+          // Values that are null are kept as they are.
+          bindString(update, 1, write.modified);
+          bindString(update, 2, write.etag);
+          update.bindLong(3, hash(url));
+          update.bindString(4, url);
+          update.execute();
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      delete.close();
+      put.close();
+      update.close();
+    }
   }
 
   /**
@@ -103,4 +208,15 @@ public class WebResponseDatabase extends AbstractPicViewDatabase {
   public boolean isReady() {
     return db != null;
   }
+
+  private static String emptyToNull(String value) {
+    return value.length() > 0 ? value : null;
+  }
+
+  /**
+   * Returns the hash by which the row of the given URL is looked up.
+   */
+  private static long hash(String url) {
+    return url.hashCode();
+  }
 }
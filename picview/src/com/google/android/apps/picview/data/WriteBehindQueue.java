@@ -0,0 +1,288 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.apps.picview.PicViewConfig;
+import com.google.android.apps.picview.data.WebResponseCursor.CachedWebResponse;
+import com.google.android.apps.picview.request.ImageRequestDispatcher;
+import com.google.android.apps.picview.request.ImageRequestDispatcher.Priority;
+
+/**
+ * Writes the validators of cached responses to the {@link WebResponseDatabase}
+ * behind the backs of the callers, in batches. Loading a feed and its
+ * thumbnails would otherwise write lots of tiny transactions, each synced to
+ * disk, that compete with reading the cache.
+ * <p>
+ * Pending writes to the same URL are merged into one. Until they are written,
+ * they are visible through {@link #get(String)}. Removing a file entry drops
+ * the pending writes of its response and deletes its row. A batch is written
+ * within a single transaction on the {@link Priority#DISK_WRITE} lane, at the
+ * latest {@link PicViewConfig#WRITE_BEHIND_DELAY} after its first write was
+ * queued.
+ * <p>
+ * Activities call {@link #flushInBackground()} when they stop, as the process
+ * might be killed at any time afterwards. Writes that are lost anyway do no
+ * harm: A response without validators is simply fetched again as a whole.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class WriteBehindQueue {
+  private static final String TAG = WriteBehindQueue.class.getSimpleName();
+
+  /** A batch of this size is written right away. */
+  private static final int MAX_BATCH_SIZE = 64;
+
+  /**
+   * A pending write of the validators of a response.
+   */
+  static class PendingWrite {
+    final String modified;
+    final String etag;
+    /**
+     * Whether the stored validators are replaced. Otherwise only those that
+     * are not <code>null</code> are updated.
+     */
+    final boolean replace;
+    /**
+     * The name of the file entry the response is stored in, or
+     * <code>null</code> if it is stored elsewhere or this is an update.
+     */
+    final String entry;
+
+    PendingWrite(String modified, String etag, boolean replace, String entry) {
+      this.modified = modified;
+      this.etag = etag;
+      this.replace = replace;
+      this.entry = entry;
+    }
+
+    /**
+     * Returns the write that has the same effect as this one, followed by the
+     * given update.
+     */
+    PendingWrite updatedWith(PendingWrite update) {
+      return new PendingWrite(update.modified != null ? update.modified
+          : modified, update.etag != null ? update.etag : etag, replace,
+          entry);
+    }
+
+    /**
+     * Returns the validators that are stored after this write has been
+     * applied to the given ones, which may be <code>null</code>.
+     */
+    CachedWebResponse applyTo(CachedWebResponse stored) {
+      if (replace) {
+        return new CachedWebResponse(modified, etag, null);
+      }
+      if (stored == null) {
+        // Updates do not create validators.
+        return null;
+      }
+      return new CachedWebResponse(modified != null ? modified
+          : stored.modified, etag != null ? etag : stored.etag, null);
+    }
+  }
+
+  private static WriteBehindQueue queue;
+
+  private final WebResponseDatabase responseDb;
+  private final Map<String, PendingWrite> pending = new HashMap<String, PendingWrite>();
+
+  /** The file entries whose rows are to be deleted. */
+  private final Set<String> removedEntries = new HashSet<String>();
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  /** Held while a batch is written, so batches are written one at a time. */
+  private final Object writeLock = new Object();
+
+  /** Whether a batch is waiting for its delay to pass. */
+  private boolean scheduled = false;
+
+  /** Whether a batch is waiting on the disk write lane. */
+  private boolean dispatched = false;
+
+  private final Runnable dispatchWrite = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (WriteBehindQueue.this) {
+        scheduled = false;
+        if (dispatched) {
+          return;
+        }
+        dispatched = true;
+      }
+      ImageRequestDispatcher.get().execute(Priority.DISK_WRITE, writeBatch);
+    }
+  };
+
+  private final Runnable writeBatch = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  private WriteBehindQueue(WebResponseDatabase responseDb) {
+    this.responseDb = responseDb;
+  }
+
+  /**
+   * Returns the singleton instance of the {@link WriteBehindQueue}.
+   */
+  public static synchronized WriteBehindQueue get() {
+    if (queue == null) {
+      queue = new WriteBehindQueue(WebResponseDatabase.get());
+    }
+    return queue;
+  }
+
+  /**
+   * Queues replacing the validators of the response with the given URL.
+   * 
+   * @param entry
+   *          the name of the file entry the response is stored in, or
+   *          <code>null</code> if it is stored elsewhere
+   */
+  void put(String url, String modified, String etag, String entry) {
+    enqueue(url, new PendingWrite(modified, etag, true, entry));
+  }
+
+  /**
+   * Queues updating the validators of the response with the given URL. Values
+   * that are <code>null</code> are kept as they are.
+   */
+  void update(String url, String modified, String etag) {
+    enqueue(url, new PendingWrite(modified, etag, false, null));
+  }
+
+  /**
+   * Queues deleting the row of the response stored in the given file entry,
+   * e.g. as the entry was evicted. Pending writes of the response are dropped.
+   */
+  synchronized void remove(String entry) {
+    Iterator<PendingWrite> writes = pending.values().iterator();
+    while (writes.hasNext()) {
+      if (entry.equals(writes.next().entry)) {
+        writes.remove();
+      }
+    }
+    removedEntries.add(entry);
+    schedule();
+  }
+
+  /**
+   * Returns the write that is pending for the given URL, or <code>null</code>
+   * if there is none.
+   */
+  synchronized PendingWrite get(String url) {
+    return pending.get(url);
+  }
+
+  /**
+   * Writes all pending writes on the {@link Priority#DISK_WRITE} lane right
+   * away, without waiting for the delay. Unlike {@link #flush()}, this may be
+   * called on the main thread.
+   */
+  public synchronized void flushInBackground() {
+    handler.removeCallbacks(dispatchWrite);
+    scheduled = false;
+    if (dispatched || (pending.isEmpty() && removedEntries.isEmpty())) {
+      return;
+    }
+    dispatched = true;
+    ImageRequestDispatcher.get().execute(Priority.DISK_WRITE, writeBatch);
+  }
+
+  /**
+   * Writes all pending writes right away, on the calling thread.
+   */
+  public void flush() {
+    synchronized (writeLock) {
+      Map<String, PendingWrite> batch;
+      Set<String> removals;
+      synchronized (this) {
+        dispatched = false;
+        if (pending.isEmpty() && removedEntries.isEmpty()) {
+          return;
+        }
+        batch = new HashMap<String, PendingWrite>(pending);
+        removals = new HashSet<String>(removedEntries);
+      }
+
+      try {
+        responseDb.writeAll(removals, batch);
+        Log.d(TAG, "Wrote " + batch.size() + " validators.");
+      } catch (RuntimeException e) {
+        // The batch is dropped, so it does not fail over and over again.
+        Log.w(TAG, "Unable to write validators: " + e.getMessage());
+      }
+
+      synchronized (this) {
+        // Writes queued meanwhile replaced the entries of the batch and are
+        // kept for the next one.
+        for (Map.Entry<String, PendingWrite> write : batch.entrySet()) {
+          if (pending.get(write.getKey()) == write.getValue()) {
+            pending.remove(write.getKey());
+          }
+        }
+        removedEntries.removeAll(removals);
+      }
+    }
+  }
+
+  private synchronized void enqueue(String url, PendingWrite write) {
+    PendingWrite previous = pending.get(url);
+    if (previous != null && !write.replace) {
+      write = previous.updatedWith(write);
+    }
+    pending.put(url, write);
+    if (write.entry != null) {
+      // The response was stored again, after its entry had been removed.
+      removedEntries.remove(write.entry);
+    }
+    schedule();
+  }
+
+  /**
+   * Makes sure the pending writes are written. Must be called while holding
+   * the lock of this queue.
+   */
+  private void schedule() {
+    if (dispatched) {
+      return;
+    }
+    if (pending.size() + removedEntries.size() >= MAX_BATCH_SIZE) {
+      handler.removeCallbacks(dispatchWrite);
+      scheduled = false;
+      dispatched = true;
+      ImageRequestDispatcher.get().execute(Priority.DISK_WRITE, writeBatch);
+    } else if (!scheduled) {
+      scheduled = true;
+      handler.postDelayed(dispatchWrite, PicViewConfig.WRITE_BEHIND_DELAY);
+    }
+  }
+}
@@ -23,7 +23,9 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.google.android.apps.picview.PicViewConfig;
 import com.google.android.apps.picview.data.Album;
+import com.google.android.apps.picview.request.ResponseParser.PartialResultListener;
 
 /**
  * A SAX handler for parsing Picasa Albums XML.
@@ -34,6 +36,21 @@ public class PicasaAlbumsSaxHandler extends DefaultHandler {
   private List<Album> albums = new ArrayList<Album>();
   private Album currentAlbum;
   private StringBuilder builder = new StringBuilder();
+  private final PartialResultListener<List<Album>> listener;
+  private List<Album> batch = new ArrayList<Album>();
+
+  public PicasaAlbumsSaxHandler() {
+    this(null);
+  }
+
+  /**
+   * @param listener
+   *          notified of batches of entries as soon as they are parsed, may be
+   *          <code>null</code>
+   */
+  public PicasaAlbumsSaxHandler(PartialResultListener<List<Album>> listener) {
+    this.listener = listener;
+  }
 
   public List<Album> getAlbums() {
     return albums;
@@ -49,6 +66,12 @@ public class PicasaAlbumsSaxHandler extends DefaultHandler {
       throws SAXException {
     if (localName.equals("entry")) {
       albums.add(currentAlbum);
+      if (listener != null) {
+        batch.add(currentAlbum);
+        if (batch.size() >= PicViewConfig.FEED_BATCH_SIZE) {
+          publishBatch();
+        }
+      }
     } else if (localName.equals("title")) {
       if (currentAlbum != null) {
         currentAlbum.setName(builder.toString());
@@ -77,4 +100,20 @@ public class PicasaAlbumsSaxHandler extends DefaultHandler {
       }
     }
   }
+
+  @Override
+  public void endDocument() throws SAXException {
+    publishBatch();
+  }
+
+  /**
+   * Hands the entries parsed since the last batch to the listener.
+   */
+  private void publishBatch() {
+    if (batch.isEmpty()) {
+      return;
+    }
+    listener.onPartialResult(batch);
+    batch = new ArrayList<Album>();
+  }
 }
\ No newline at end of file
@@ -23,7 +23,9 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.google.android.apps.picview.PicViewConfig;
 import com.google.android.apps.picview.data.Photo;
+import com.google.android.apps.picview.request.ResponseParser.PartialResultListener;
 
 /**
  * A SAX handler for parsing Picasa Photos XML.
@@ -34,6 +36,21 @@ public class PicasaPhotosSaxHandler extends DefaultHandler {
   private List<Photo> albums = new ArrayList<Photo>();
   private Photo currentPhoto;
   private StringBuilder builder = new StringBuilder();
+  private final PartialResultListener<List<Photo>> listener;
+  private List<Photo> batch = new ArrayList<Photo>();
+
+  public PicasaPhotosSaxHandler() {
+    this(null);
+  }
+
+  /**
+   * @param listener
+   *          notified of batches of entries as soon as they are parsed, may be
+   *          <code>null</code>
+   */
+  public PicasaPhotosSaxHandler(PartialResultListener<List<Photo>> listener) {
+    this.listener = listener;
+  }
 
   public List<Photo> getPhotos() {
     return albums;
@@ -49,6 +66,12 @@ public class PicasaPhotosSaxHandler extends DefaultHandler {
       throws SAXException {
     if (localName.equals("entry")) {
       albums.add(currentPhoto);
+      if (listener != null) {
+        batch.add(currentPhoto);
+        if (batch.size() >= PicViewConfig.FEED_BATCH_SIZE) {
+          publishBatch();
+        }
+      }
     } else if (localName.equals("title")) {
       if (currentPhoto != null) {
         currentPhoto.setName(builder.toString());
@@ -76,4 +99,20 @@ public class PicasaPhotosSaxHandler extends DefaultHandler {
       }
     }
   }
+
+  @Override
+  public void endDocument() throws SAXException {
+    publishBatch();
+  }
+
+  /**
+   * Hands the entries parsed since the last batch to the listener.
+   */
+  private void publishBatch() {
+    if (batch.isEmpty()) {
+      return;
+    }
+    listener.onPartialResult(batch);
+    batch = new ArrayList<Photo>();
+  }
 }
\ No newline at end of file
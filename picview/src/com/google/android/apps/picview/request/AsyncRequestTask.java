@@ -23,36 +23,55 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import com.google.android.apps.picview.request.ResponseParser.PartialResultListener;
+
 /**
  * A task that executes an HTTP request asynchronously, without blocking the UI
- * thread.
+ * thread. The response is parsed in the background as well, while it is read.
+ * An {@link IncrementalCallback} is handed parts of the result while the rest
+ * is still being parsed.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
+ * 
+ * @param <T>
+ *          the type of the parsed response
  */
-public class AsyncRequestTask extends AsyncTask<Void, Integer, String> {
+public class AsyncRequestTask<T> extends AsyncTask<Void, T, T> {
 
-  public static interface RequestCallback {
-    public void success(String data);
+  public static interface RequestCallback<T> {
+    public void success(T data);
 
     public void error(String message);
   }
 
+  public static interface IncrementalCallback<T> extends RequestCallback<T> {
+    /**
+     * Called with a part of the result, e.g. a batch of albums, while the
+     * rest of the response is still being parsed. {@link #success(Object)} is
+     * called with the complete result afterwards.
+     */
+    public void partial(T part);
+  }
+
   private static final String TAG = AsyncRequestTask.class.getSimpleName();
 
   private CachedWebRequestFetcher fetcher;
   private final String url;
-  private final RequestCallback callback;
+  private final ResponseParser<T> parser;
+  private final RequestCallback<T> callback;
   private final boolean forceFetchFromWeb;
   private final Context context;
   private ProgressDialog progressDialog = null;
   private String errorMessage;
-  private boolean wasTakenFromDisk = false;
+  private int cacheStatus = CachedResponse.NOT_CACHED;
+  private boolean revalidation = false;
 
   public AsyncRequestTask(CachedWebRequestFetcher fetcher, String url,
-      boolean forceFetchFromWeb, String loadingMessage, Context context,
-      RequestCallback callback) {
+      ResponseParser<T> parser, boolean forceFetchFromWeb,
+      String loadingMessage, Context context, RequestCallback<T> callback) {
     this.fetcher = fetcher;
     this.url = url;
+    this.parser = parser;
     this.forceFetchFromWeb = forceFetchFromWeb;
     this.context = context;
     this.callback = callback;
@@ -71,11 +90,21 @@ public class AsyncRequestTask extends AsyncTask<Void, Integer, String> {
   }
 
   @Override
-  protected String doInBackground(Void... params) {
+  protected T doInBackground(Void... params) {
     try {
-      CachedResponse<String> cachedResponse = fetcher.cachedFetch(new URL(url),
-          forceFetchFromWeb);
-      wasTakenFromDisk = (cachedResponse.cacheStatus == CachedResponse.FROM_FILE);
+      PartialResultListener<T> listener = null;
+      if (callback instanceof IncrementalCallback) {
+        listener = new PartialResultListener<T>() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public void onPartialResult(T part) {
+            publishProgress(part);
+          }
+        };
+      }
+      CachedResponse<T> cachedResponse = fetcher.cachedFetch(new URL(url),
+          forceFetchFromWeb, parser, listener);
+      cacheStatus = cachedResponse.cacheStatus;
       return cachedResponse.content;
     } catch (Exception e) {
       e.printStackTrace();
@@ -85,18 +114,36 @@ public class AsyncRequestTask extends AsyncTask<Void, Integer, String> {
   }
 
   @Override
-  protected void onPostExecute(String result) {
+  @SuppressWarnings("unchecked")
+  protected void onProgressUpdate(T... parts) {
+    // There is something to show, so the user does not have to wait anymore.
+    if (progressDialog != null && progressDialog.isShowing()) {
+      progressDialog.dismiss();
+    }
+    for (T part : parts) {
+      ((IncrementalCallback<T>) callback).partial(part);
+    }
+  }
+
+  @Override
+  protected void onPostExecute(T result) {
     if (progressDialog != null && progressDialog.isShowing()) {
       progressDialog.dismiss();
     }
 
     if (result != null) {
+      // The server confirmed that the callback has the latest version
+      // already, so there is nothing to compare.
+      if (revalidation && cacheStatus == CachedResponse.NOT_MODIFIED) {
+        return;
+      }
       callback.success(result);
 
-      // If the result came from disk cache, we double check online to see
+      // If the result came from a cache, we double check online to see
       // whether there is a newer version. If this is the case, the
       // callback will be called a second time with the updated result.
-      if (wasTakenFromDisk) {
+      if (cacheStatus == CachedResponse.FROM_FILE
+          || cacheStatus == CachedResponse.FROM_MEMORY) {
          checkForNewerVersionAsync(result);
       }
     } else {
@@ -108,18 +155,22 @@ public class AsyncRequestTask extends AsyncTask<Void, Integer, String> {
    * Fire off another {@link AsyncRequestTask} that forces the fetcher to fetch
    * the contents from the web and skip the caches. This way we can check,
    * whether there is updated data available. If there is, then the callback we
-   * be called once again with the updated data.
+   * be called once again with the updated data. Responses that were not
+   * modified are not even compared.
    * 
    * @param oldData
    *          the old data, so we can compare the new data. Only if new and old
    *          differ, we call the callback once again
    */
-  private void checkForNewerVersionAsync(final String oldData) {
-    AsyncRequestTask task = new AsyncRequestTask(fetcher, url, true, null,
-        context, new RequestCallback() {
+  private void checkForNewerVersionAsync(final T oldData) {
+    AsyncRequestTask<T> task = new AsyncRequestTask<T>(fetcher, url, parser,
+        true, null, context, new RequestCallback<T>() {
           @Override
-          public void success(String data) {
-            if (!data.equals(oldData)) {
+          public void success(T data) {
+            // Differing hash codes tell a change apart without comparing
+            // every entry.
+            if (data.hashCode() != oldData.hashCode()
+                || !data.equals(oldData)) {
               Log.d(TAG, "Data in DB has changed, notifying "
                   + "callback a second time..");
               callback.success(data);
@@ -131,6 +182,7 @@ public class AsyncRequestTask extends AsyncTask<Void, Integer, String> {
             // Nothing we can do.
           }
         });
+    task.revalidation = true;
     task.execute();
   }
 }
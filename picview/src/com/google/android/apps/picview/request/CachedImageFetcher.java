@@ -16,19 +16,25 @@
 
 package com.google.android.apps.picview.request;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.SoftReference;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
 import android.util.Log;
 
+import com.google.android.apps.picview.data.BitmapDecoder;
+import com.google.android.apps.picview.data.BitmapPool;
+import com.google.android.apps.picview.data.BitmapDecoder.Target;
 import com.google.android.apps.picview.data.FileSystemImageCache;
+import com.google.android.apps.picview.data.ImageMemoryCache;
+import com.google.android.apps.picview.data.JournaledDiskCache.Editor;
+import com.google.android.apps.picview.request.ImageRequestDispatcher.Priority;
 
 /**
  * This class should be use to fetch images. It makes use of the file-system and
@@ -39,12 +45,46 @@ import com.google.android.apps.picview.data.FileSystemImageCache;
 public class CachedImageFetcher {
   private static final String TAG = CachedImageFetcher.class.getSimpleName();
 
-  private HashMap<URL, SoftReference<Bitmap>> cache = new HashMap<URL, SoftReference<Bitmap>>();
+  /** The number of downloads that were stopped, as nobody needed them. */
+  private static final AtomicInteger cancelledFetches = new AtomicInteger();
 
-  /** Used to synchronize access based on URLs. */
-  private HashMap<String, URL> urls = new HashMap<String, URL>();
+  /** The number of bytes that did not have to be downloaded. */
+  private static final AtomicLong bytesSaved = new AtomicLong();
+
+  /**
+   * Used to coalesce concurrent fetches of the same URL. Every caller sharing a
+   * fetch receives its own reference to the image.
+   */
+  private InFlightRequests<Bitmap> inFlight = new InFlightRequests<Bitmap>() {
+    @Override
+    protected Bitmap share(Bitmap bitmap) {
+      BitmapPool.get().retain(bitmap);
+      return bitmap;
+    }
+
+    @Override
+    protected void discard(Bitmap bitmap) {
+      BitmapPool.get().release(bitmap);
+    }
+  };
 
   private FileSystemImageCache fileSystemCache;
+  private ImageMemoryCache memoryCache;
+  private HttpTransport transport;
+
+  /**
+   * Instantiated the {@link CachedImageFetcher}.
+   * 
+   * @param fileSystemCache
+   *          the cache to use as a fallback, if the given value could not be
+   *          found in memory
+   * @param memoryCache
+   *          the in-memory cache that is looked up first
+   */
+  public CachedImageFetcher(FileSystemImageCache fileSystemCache,
+      ImageMemoryCache memoryCache) {
+    this(fileSystemCache, memoryCache, UrlConnectionTransport.get());
+  }
 
   /**
    * Instantiated the {@link CachedImageFetcher}.
@@ -52,94 +92,269 @@ public class CachedImageFetcher {
    * @param fileSystemCache
    *          the cache to use as a fallback, if the given value could not be
    *          found in memory
+   * @param memoryCache
+   *          the in-memory cache that is looked up first
+   * @param transport
+   *          used to fetch images that are in neither cache
    */
-  public CachedImageFetcher(FileSystemImageCache fileSystemCache) {
+  public CachedImageFetcher(FileSystemImageCache fileSystemCache,
+      ImageMemoryCache memoryCache, HttpTransport transport) {
     this.fileSystemCache = fileSystemCache;
+    this.memoryCache = memoryCache;
+    this.transport = transport;
   }
 
   /**
    * Performs a cached fetch. If the image is in one of the caches (file-system
    * or in-memory), this version is returned. If the image could not be found in
    * cache, it's fetched and automatically put into both caches.
+   * <p>
+   * Images are decoded no larger than needed to cover the given target. As the
+   * in-memory cache is keyed by URL only, callers should use the same target
+   * for the same URL.
+   * <p>
+   * The returned image is retained for the caller, who has to give it up
+   * through {@link BitmapPool#release(Bitmap)} once it is not shown anymore.
    */
-  public Bitmap cachedFetchImage(URL url) {
-    // Make sure we have a URL object that we can synchronize on.
-    url = getSynchronizableInstance(url);
+  public Bitmap cachedFetchImage(URL url, Target target) {
+    return cachedFetchImage(url, target, new CancellationToken());
+  }
 
-    // Synchronize per URL.
-    synchronized (url) {
-      // Get it from memory, if we still have it.
-      if (cache.containsKey(url) && cache.get(url).get() != null) {
-        return cache.get(url).get();
-      }
+  /**
+   * Like {@link #cachedFetchImage(URL, Target)}, but can be cancelled. A
+   * cancelled request returns <code>null</code> right away. The download and
+   * decode is stopped as well, unless another request is waiting for the same
+   * image.
+   */
+  public Bitmap cachedFetchImage(final URL url, final Target target,
+      CancellationToken cancellation) {
+    // Get it from memory, if we still have it. This does not need to wait for
+    // any fetch that might be in flight.
+    Bitmap bitmap = memoryCache.acquire(url);
+    if (bitmap != null) {
+      return bitmap;
+    }
 
-      // If it's not in memory, try to load it from file system.
-      Bitmap bitmap = fileSystemCache.get(url);
+    // Only one thread loads a given URL, all others wait for its result.
+    return inFlight.execute(url.toString(),
+        new InFlightRequests.Loader<Bitmap>() {
+          @Override
+          public Bitmap load(CancellationToken loadCancellation) {
+            return loadImage(url, target, loadCancellation);
+          }
+        }, cancellation);
+  }
 
-      // If it is also not found in the file system cache, try to fetch it
-      // from the network.
-      if (bitmap == null) {
-        bitmap = fetchImageFromWeb(url);
-        if (bitmap != null) {
-          fileSystemCache.asyncPut(url, "TODO", bitmap);
-        }
-      }
-      if (bitmap != null) {
-        cache.put(url, new SoftReference<Bitmap>(bitmap));
-      }
+  /**
+   * Returns the image, if it is in the in-memory cache. This never touches the
+   * disk or the network, so it may be called on the main thread.
+   * <p>
+   * The returned image is retained for the caller, who has to give it up
+   * through {@link BitmapPool#release(Bitmap)} once it is not shown anymore.
+   */
+  public Bitmap peekImage(URL url) {
+    return memoryCache.acquire(url);
+  }
+
+  /**
+   * Returns the image, if it is in one of the caches. Unlike
+   * {@link #cachedFetchImage(URL, Target)}, this never goes to the network.
+   * <p>
+   * The returned image is retained for the caller, who has to give it up
+   * through {@link BitmapPool#release(Bitmap)} once it is not shown anymore.
+   */
+  public Bitmap getCachedImage(URL url, Target target) {
+    Bitmap bitmap = memoryCache.acquire(url);
+    if (bitmap != null) {
+      return bitmap;
+    }
+    MainThreadCheck.flagIfOnMainThread("Image disk cache read");
+    bitmap = fileSystemCache.get(url, target);
+    if (bitmap != null) {
+      // Our reference is added first, so the image cannot be evicted and
+      // pooled right after it is put into memory.
+      BitmapPool.get().retain(bitmap);
+      memoryCache.put(url, bitmap);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Loads the image from file system or the network and puts it into both
+   * caches. The returned image is retained, the reference is handed over to
+   * the in-flight fetch.
+   */
+  private Bitmap loadImage(URL url, Target target,
+      CancellationToken cancellation) {
+    // A fetch that just completed might have put it into memory already.
+    Bitmap bitmap = memoryCache.acquire(url);
+    if (bitmap != null) {
       return bitmap;
     }
+
+    // Nobody might need the image anymore by the time we get here.
+    if (cancellation.isCancelled()) {
+      return null;
+    }
+
+    // If it's not in memory, try to load it from file system.
+    MainThreadCheck.flagIfOnMainThread("Image disk cache read");
+    bitmap = fileSystemCache.get(url, target);
+
+    // If it is also not found in the file system cache, try to fetch it
+    // from the network.
+    if (bitmap == null) {
+      bitmap = fetchImageFromWeb(url, target, cancellation);
+    }
+    if (bitmap != null) {
+      BitmapPool.get().retain(bitmap);
+      memoryCache.put(url, bitmap);
+    }
+    return bitmap;
   }
 
   /**
    * If the image with the given URL is not already in cache, it is fetched.
    * This can be used to pre-cache images that are likely to be requested soon.
    */
-  public void maybePrefetchImageAsync(final URL url) {
+  public void maybePrefetchImageAsync(URL url, Target target) {
+    maybePrefetchImageAsync(url, target, new CancellationToken());
+  }
+
+  /**
+   * Like {@link #maybePrefetchImageAsync(URL, Target)}, but the prefetch can be
+   * cancelled, e.g. when the image is not likely to be requested anymore.
+   */
+  public void maybePrefetchImageAsync(final URL url, final Target target,
+      final CancellationToken cancellation) {
     if (isCached(url)) {
       return;
     }
-    (new AsyncTask<Void, Integer, Void>() {
+    ImageRequestDispatcher.get().execute(Priority.PREFETCH, new Runnable() {
       @Override
-      protected Void doInBackground(Void... params) {
-        cachedFetchImage(url);
-        return null;
+      public void run() {
+        Bitmap bitmap = cachedFetchImage(url, target, cancellation);
+        if (bitmap != null) {
+          BitmapPool.get().release(bitmap);
+        }
       }
-    }).execute();
+    });
   }
 
   /**
-   * Returns whether the image with the given URL exists in cache.
+   * Returns whether the image with the given URL exists in the in-memory cache.
+   * It might be evicted right after, so use {@link #peekImage(URL)} to get it.
    */
   public boolean isCached(URL url) {
-    return cache.containsKey(url);
+    return memoryCache.get(url) != null;
   }
 
-  private URL getSynchronizableInstance(URL url) {
-    if (urls.containsKey(url.toString())) {
-      url = urls.get(url.toString());
-    } else {
-      urls.put(url.toString(), url);
-    }
-    return url;
+  /**
+   * Returns the number of image downloads that were stopped early, as nobody
+   * needed the image anymore.
+   */
+  public static int getCancelledFetchCount() {
+    return cancelledFetches.get();
   }
 
   /**
-   * Fetches the given image from the web.
+   * Returns the number of bytes that did not have to be downloaded, as the
+   * downloads were cancelled. Responses without a content length are not
+   * counted.
    */
-  private Bitmap fetchImageFromWeb(URL url) {
+  public static long getBytesSaved() {
+    return bytesSaved.get();
+  }
+
+  /**
+   * Fetches the given image from the web and decodes it for the given target.
+   * The downloaded bytes are streamed into the file system cache as they are,
+   * so the image never has to be re-encoded.
+   * <p>
+   * If the request is cancelled, the connection is aborted, so the rest of the
+   * image is not downloaded, and the image is not decoded.
+   */
+  private Bitmap fetchImageFromWeb(URL url, Target target,
+      CancellationToken cancellation) {
+    HttpTransport.Response response = null;
     try {
-      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-      conn.setDoInput(true);
-      conn.connect();
-      InputStream is = conn.getInputStream();
-      return BitmapFactory.decodeStream(is);
-    } catch (OutOfMemoryError ex) {
-      Log.e(TAG, "Out of memory, cannot create bitmap.");
-      System.gc();
+      response = transport.get(url, null, false);
+      if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+        Log.w(TAG, "Status " + response.getStatusCode() + " for " + url);
+        return null;
+      }
+      InputStream is = response.getBody();
+      Editor editor = fileSystemCache.edit(url);
+      if (editor != null) {
+        boolean committed = false;
+        try {
+          long copied = copyStream(is, editor.getOutputStream(), cancellation);
+          if (cancellation.isCancelled()) {
+            onFetchCancelled(url, response.getContentLength(), copied);
+            response.abort();
+            return null;
+          }
+          // Decode before committing, as committing trims the cache, which
+          // might evict this very entry, e.g. if it exceeds the budget.
+          Bitmap bitmap = BitmapDecoder.decode(editor.getFile(), target);
+          if (bitmap != null) {
+            committed = editor.commit();
+          }
+          return bitmap;
+        } finally {
+          if (!committed) {
+            editor.abort();
+          }
+        }
+      }
+
+      // Without the file system cache, we keep the encoded image in
+      // memory, to read the bounds before decoding.
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      long copied = copyStream(is, data, cancellation);
+      if (cancellation.isCancelled()) {
+        onFetchCancelled(url, response.getContentLength(), copied);
+        response.abort();
+        return null;
+      }
+      return BitmapDecoder.decode(data.toByteArray(), target);
     } catch (IOException e) {
       e.printStackTrace();
+    } finally {
+      if (response != null) {
+        response.close();
+      }
     }
     return null;
   }
+
+  /**
+   * Keeps track of a download that was stopped early.
+   */
+  private static void onFetchCancelled(URL url, int contentLength,
+      long copied) {
+    long saved = contentLength > copied ? contentLength - copied : 0;
+    int count = cancelledFetches.incrementAndGet();
+    long total = bytesSaved.addAndGet(saved);
+    Log.d(TAG, "Cancelled fetch of " + url + ", saved " + saved
+        + " bytes. Total: " + count + " fetches, " + total + " bytes.");
+  }
+
+  /**
+   * Copies the content of an {@link InputStream} to an {@link OutputStream},
+   * until the stream ends or the given token is cancelled.
+   * 
+   * @return the number of bytes copied
+   */
+  private static long copyStream(InputStream in, OutputStream out,
+      CancellationToken cancellation) throws IOException {
+    byte[] buffer = new byte[4096];
+    long copied = 0;
+    int length;
+    while (!cancellation.isCancelled() && (length = in.read(buffer)) > 0) {
+      out.write(buffer, 0, length);
+      copied += length;
+    }
+    return copied;
+  }
 }
@@ -18,7 +18,8 @@ package com.google.android.apps.picview.request;
 
 /**
  * A cached response, that can come from either filesystem, in-memory or was
- * directly fetched because no cached copy was present.
+ * directly fetched because no cached copy was present. A cached copy that the
+ * server confirmed to be up to date is {@link #NOT_MODIFIED}.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  * 
@@ -29,6 +30,7 @@ public class CachedResponse<T> {
   public static final int NOT_CACHED = 0;
   public static final int FROM_FILE = 1;
   public static final int FROM_MEMORY = 2;
+  public static final int NOT_MODIFIED = 3;
 
   public final int cacheStatus;
   public final T content;
@@ -16,20 +16,45 @@
 
 package com.google.android.apps.picview.request;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import android.util.Log;
 
-import com.google.android.apps.picview.data.FileSystemWebResponseCache;
+import com.google.android.apps.picview.PicViewConfig;
+import com.google.android.apps.picview.data.JournaledDiskCache.Editor;
+import com.google.android.apps.picview.data.LruCache;
+import com.google.android.apps.picview.data.WebResponseCache;
 import com.google.android.apps.picview.data.WebResponseCursor.CachedWebResponse;
+import com.google.android.apps.picview.request.ResponseParser.PartialResultListener;
 
 /**
- * Uses the request database and runtime cache to lookup requests. If the
- * responses are not stored in there, they are fetched from the web.
+ * Uses the request cache to lookup requests. If the responses are not stored
+ * in there, they are fetched from the web.
+ * <p>
+ * Responses are never held in memory as a whole. They are streamed into a
+ * {@link ResponseParser}, from the cache or from the network. In the latter
+ * case, the body is written to the cache while it is parsed. Parsers that are
+ * a {@link ResponseStore} as well keep their results in parsed form instead,
+ * so stored responses do not have to be parsed again.
+ * <p>
+ * The most recently parsed responses are kept in memory, shared by all
+ * fetchers, so e.g. returning to a screen does not load its feed again.
+ * <p>
+ * The <code>ETag</code> and <code>Last-Modified</code> headers of responses are
+ * stored along with them. When a stored response is fetched from the web
+ * again, it is revalidated with a conditional request, so the body is only
+ * transferred if it changed.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  */
@@ -37,138 +62,361 @@ public class CachedWebRequestFetcher {
   private static final String TAG = CachedWebRequestFetcher.class
       .getSimpleName();
 
-  private HashMap<URL, String> cache = new HashMap<URL, String>();
+  /** The size of the buffer between the response body and the parser. */
+  private static final int BUFFER_SIZE = 8192;
 
-  /** Used to synchronize access based on URLs. */
-  private HashMap<String, URL> urls = new HashMap<String, URL>();
+  /**
+   * Parsed responses, keyed like {@link #getParsedKey(URL, ResponseParser)}.
+   * The content is shared by all callers, so it must not be modified.
+   */
+  private static final LruCache<String, Object> parsedResponses = new LruCache<String, Object>(
+      PicViewConfig.PARSED_RESPONSE_CACHE_SIZE);
+
+  /** Used to coalesce concurrent fetches of the same URL. */
+  private InFlightRequests<CachedResponse<?>> inFlight = new InFlightRequests<CachedResponse<?>>();
 
-  private FileSystemWebResponseCache fileSystemCache;
+  private WebResponseCache fileSystemCache;
+  private HttpTransport transport;
 
   /**
    * Instantiated the {@link CachedImageFetcher}.
    * 
    * @param fileSystemCache
-   *          the cache to use as a fallback, if the given value could not be
-   *          found in memory
+   *          the cache to look up responses in
+   */
+  public CachedWebRequestFetcher(WebResponseCache fileSystemCache) {
+    this(fileSystemCache, UrlConnectionTransport.get());
+  }
+
+  /**
+   * Instantiated the {@link CachedWebRequestFetcher}.
+   * 
+   * @param fileSystemCache
+   *          the cache to look up responses in
+   * @param transport
+   *          used to fetch responses from the web
    */
-  public CachedWebRequestFetcher(FileSystemWebResponseCache fileSystemCache) {
+  public CachedWebRequestFetcher(WebResponseCache fileSystemCache,
+      HttpTransport transport) {
     this.fileSystemCache = fileSystemCache;
+    this.transport = transport;
   }
 
   /**
-   * Performs a cached fetch. If the response is in one of the caches
-   * (file-system or in-memory), this version is returned. If the response could
-   * not be found in cache, it's fetched and automatically put into both caches.
+   * Performs a cached fetch. If the response was parsed recently, the parsed
+   * content is returned right away. If the response is in the cache, this
+   * version is parsed. If the response could not be found in cache, it's
+   * fetched, parsed and automatically put into the cache.
    * 
    * @param url
    *          the URL to fetch
    * @param forceFetchFromWeb
    *          whether the content should be fetched from the web, regardless of
-   *          whether it is present in any of the caches
+   *          whether it is present in the cache. A cached version is
+   *          revalidated.
+   * @param parser
+   *          parses the response body
+   * @param listener
+   *          notified of parts of the content while it is parsed, may be
+   *          <code>null</code>. If the fetch is coalesced with one already in
+   *          flight, only the final response is returned.
+   * @return the response, whose content is <code>null</code> if it could
+   *         neither be loaded nor parsed. The content may be shared with
+   *         other callers, so it must not be modified.
    */
-  public CachedResponse<String> cachedFetch(URL url, boolean forceFetchFromWeb) {
+  @SuppressWarnings("unchecked")
+  public <T> CachedResponse<T> cachedFetch(final URL url,
+      final boolean forceFetchFromWeb, final ResponseParser<T> parser,
+      final PartialResultListener<T> listener) {
+    final String parsedKey = getParsedKey(url, parser);
+    if (!forceFetchFromWeb) {
+      T parsed = (T) parsedResponses.get(parsedKey);
+      if (parsed != null) {
+        return new CachedResponse<T>(CachedResponse.FROM_MEMORY, parsed);
+      }
+    }
 
-    // Make sure we have a URL object that we can synchronize on.
-    url = getSynchronizableInstance(url);
+    // Forced fetches must not be answered by a cached load that is in flight,
+    // so they are coalesced separately. So are loads with different parsers.
+    String key = (forceFetchFromWeb ? "web:" : "cache:") + parsedKey;
+    CachedResponse<T> response = (CachedResponse<T>) inFlight.execute(key,
+        new Callable<CachedResponse<?>>() {
+          @Override
+          public CachedResponse<?> call() {
+            CachedResponse<T> loaded = load(url, forceFetchFromWeb, parser,
+                listener);
+            if (loaded.content != null) {
+              parsedResponses.put(parsedKey, loaded.content);
+            }
+            return loaded;
+          }
+        });
+    if (response == null) {
+      return new CachedResponse<T>(CachedResponse.NOT_CACHED, null);
+    }
+    return response;
+  }
 
-    // Synchronize per URL.
-    synchronized (url) {
-      String responseText = null;
-      boolean fromDatabase = false;
+  /**
+   * Returns the key of the given response, parsed by the given parser. Other
+   * parsers turn the same response into different content.
+   */
+  private static String getParsedKey(URL url, ResponseParser<?> parser) {
+    return parser.getClass().getName() + ":" + url.toString();
+  }
 
-      if (!forceFetchFromWeb) {
-        // Get it from in-memory cache, if we have it.
-        if (cache.containsKey(url) && cache.get(url) != null) {
-          return new CachedResponse<String>(CachedResponse.FROM_MEMORY,
-              cache.get(url));
-        }
+  /**
+   * Loads the response from file system or the network and parses it.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> CachedResponse<T> load(URL url, boolean forceFetchFromWeb,
+      ResponseParser<T> parser, PartialResultListener<T> listener) {
+    MainThreadCheck.flagIfOnMainThread("Response cache read");
+    if (parser instanceof ResponseStore) {
+      return loadStored(url, forceFetchFromWeb, parser,
+          (ResponseStore<T>) parser, listener);
+    }
 
-        // If it's not in-memory, try to load it from file system.
-        CachedWebResponse response = fileSystemCache.get(url);
+    // Even if the cache is intentionally skipped, the stored version is used
+    // to revalidate it.
+    CachedWebResponse stored = fileSystemCache.get(url);
+    if (stored != null && !forceFetchFromWeb) {
+      T content = parseFile(stored.body, parser, listener);
+      if (content != null) {
+        return new CachedResponse<T>(CachedResponse.FROM_FILE, content);
+      }
+      // The stored version is broken, so it must not be revalidated. Parts of
+      // it might have been published already, the listener has to cope with
+      // them being published again.
+      stored = null;
+    }
 
-        if (response != null) {
-          responseText = response.response;
-          fromDatabase = true;
-        }
+    // If it is also not found in the file system cache, or fetching
+    // from cache was intentionally skipped, try to fetch it
+    // from the network.
+    return fetchFromWeb(url, stored, parser, listener);
+  }
+
+  /**
+   * Loads the response from the store that keeps it in parsed form, or from
+   * the network. Only its validators are kept in the file system cache.
+   */
+  private <T> CachedResponse<T> loadStored(URL url, boolean forceFetchFromWeb,
+      ResponseParser<T> parser, ResponseStore<T> store,
+      PartialResultListener<T> listener) {
+    T stored = store.load(url);
+    if (stored != null && !forceFetchFromWeb) {
+      return new CachedResponse<T>(CachedResponse.FROM_FILE, stored);
+    }
+    CachedWebResponse validators = null;
+    if (stored != null) {
+      validators = fileSystemCache.getValidators(url);
+    }
+
+    Log.d(TAG, "Fetching from web: " + url.toString());
+    HttpTransport.Response httpResponse = null;
+    try {
+      httpResponse = transport.get(url, getConditionalHeaders(validators),
+          true);
+      int status = httpResponse.getStatusCode();
+      String modified = httpResponse.getHeader("Last-Modified");
+      String etag = httpResponse.getHeader("ETag");
+      if (validators != null && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        Log.d(TAG, "Not modified: " + url.toString());
+        fileSystemCache.updateValidators(url, modified, etag);
+        return new CachedResponse<T>(CachedResponse.NOT_MODIFIED, stored);
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        Log.w(TAG, "Status " + status + " for " + url.toString());
+        return new CachedResponse<T>(CachedResponse.NOT_CACHED, null);
       }
 
-      // If it is also not found in the file system cache, or fetching
-      // from cache was intentionally skipped, try to fetch it
-      // from the network.
-      if (responseText == null || forceFetchFromWeb) {
-        responseText = fetchFromWeb(url);
-        if (responseText != null) {
-          fileSystemCache.asyncPut(url, "TODO", responseText);
-        }
+      T content = parser.parse(new BufferedInputStream(httpResponse.getBody(),
+          BUFFER_SIZE), listener);
+      if (content != null && store.store(url, content)) {
+        fileSystemCache.putValidators(url, modified, etag);
       }
-      if (responseText != null) {
-        cache.put(url, responseText);
+      return new CachedResponse<T>(CachedResponse.NOT_CACHED, content);
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      if (httpResponse != null) {
+        httpResponse.close();
       }
-      return new CachedResponse<String>(fromDatabase ? CachedResponse.FROM_FILE
-          : CachedResponse.NOT_CACHED, responseText);
     }
+    return new CachedResponse<T>(CachedResponse.NOT_CACHED, null);
   }
 
   /**
-   * Returns whether a response from a request with the given URL exists in the
-   * in-memory cache.
+   * Returns the headers that make a request conditional on the given
+   * validators, which may be <code>null</code>.
    */
-  public boolean isCached(URL url) {
-    return cache.containsKey(url);
+  private static Map<String, String> getConditionalHeaders(
+      CachedWebResponse validators) {
+    Map<String, String> headers = new HashMap<String, String>();
+    if (validators != null) {
+      if (validators.etag != null) {
+        headers.put("If-None-Match", validators.etag);
+      }
+      if (validators.modified != null) {
+        headers.put("If-Modified-Since", validators.modified);
+      }
+    }
+    return headers;
   }
 
   /**
-   * Fetches the given URL from the web.
+   * Parses the given file.
+   * 
+   * @return the parsed content or <code>null</code>, if the file could not be
+   *         read or parsed
    */
-  public String fetchFromWeb(URL url) {
-    Log.d(TAG, "Fetching from web: " + url.toString());
+  private static <T> T parseFile(File file, ResponseParser<T> parser,
+      PartialResultListener<T> listener) {
     try {
-      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-      conn.setUseCaches(false);
-      conn.setReadTimeout(30000); // 30 seconds.
-      conn.setDoInput(true);
-      conn.connect();
-      InputStream is = conn.getInputStream();
-      return readStringFromStream(is);
-    } catch (IOException e) {
-      e.printStackTrace();
+      InputStream is = new BufferedInputStream(new FileInputStream(file),
+          BUFFER_SIZE);
+      try {
+        return parser.parse(is, listener);
+      } finally {
+        is.close();
+      }
+    } catch (Exception e) {
+      Log.w(TAG, "Could not parse stored response: " + e.getMessage());
     }
     return null;
   }
 
-  private URL getSynchronizableInstance(URL url) {
-    if (urls.containsKey(url.toString())) {
-      url = urls.get(url.toString());
-    } else {
-      urls.put(url.toString(), url);
+  /**
+   * Fetches the given URL from the web and parses the response, while it is
+   * written to the cache. If a stored version is given, the request is
+   * conditional on its validators and the stored version is parsed, if it is
+   * still up to date.
+   */
+  private <T> CachedResponse<T> fetchFromWeb(URL url,
+      CachedWebResponse stored, ResponseParser<T> parser,
+      PartialResultListener<T> listener) {
+    Log.d(TAG, "Fetching from web: " + url.toString());
+    HttpTransport.Response httpResponse = null;
+    try {
+      httpResponse = transport.get(url, getConditionalHeaders(stored), true);
+      int status = httpResponse.getStatusCode();
+      String modified = httpResponse.getHeader("Last-Modified");
+      String etag = httpResponse.getHeader("ETag");
+      if (stored != null && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        Log.d(TAG, "Not modified: " + url.toString());
+        fileSystemCache.updateValidators(url, modified, etag);
+        T content = parseFile(stored.body, parser, listener);
+        int cacheStatus = content != null ? CachedResponse.NOT_MODIFIED
+            : CachedResponse.NOT_CACHED;
+        return new CachedResponse<T>(cacheStatus, content);
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        Log.w(TAG, "Status " + status + " for " + url.toString());
+        return new CachedResponse<T>(CachedResponse.NOT_CACHED, null);
+      }
+
+      Editor editor = fileSystemCache.edit(url);
+      boolean committed = false;
+      try {
+        InputStream body = httpResponse.getBody();
+        TeeInputStream tee = null;
+        if (editor != null) {
+          tee = new TeeInputStream(body, editor.getOutputStream());
+          body = tee;
+        }
+        T content = parser.parse(new BufferedInputStream(body, BUFFER_SIZE),
+            listener);
+        if (tee != null) {
+          // The parser might not have read the very end of the body.
+          tee.drain();
+          if (!tee.failed) {
+            committed = fileSystemCache.commit(url, editor, modified, etag);
+          }
+        }
+        Log.d(TAG, "Fetched " + httpResponse.getBytesRead() + " bytes from "
+            + url.toString());
+        return new CachedResponse<T>(CachedResponse.NOT_CACHED, content);
+      } finally {
+        if (editor != null && !committed) {
+          editor.abort();
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      if (httpResponse != null) {
+        httpResponse.close();
+      }
     }
-    return url;
+    return new CachedResponse<T>(CachedResponse.NOT_CACHED, null);
   }
 
   /**
-   * Read the content of an {@link InputStream} as String.
-   * 
-   * @param stream
-   *          the stream to read from
-   * @return the content of the stream or an empty string, if an error occurs.
+   * Writes everything that is read through it to another stream as well. If
+   * writing fails, e.g. as the disk is full, reading goes on and the failure
+   * is recorded.
    */
-  private static String readStringFromStream(InputStream stream) {
-    final int READ_BUFFER = 4096;
-    StringBuilder builder = new StringBuilder();
-    byte b[] = new byte[READ_BUFFER];
-    int l = 0;
-    try {
-      if (stream == null) {
-        return "";
-      } else {
-        while ((l = stream.read(b)) > 0) {
-          builder.append(new String(b, 0, l));
-        }
+  private static class TeeInputStream extends FilterInputStream {
+    private final OutputStream out;
+    private boolean failed = false;
+
+    private TeeInputStream(InputStream in, OutputStream out) {
+      super(in);
+      this.out = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        write(buffer, offset, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes have to end up in the copy as well.
+      byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+      int read = read(buffer, 0, buffer.length);
+      return read > 0 ? read : 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    /**
+     * Reads the rest of the stream, so all of it ends up in the copy.
+     */
+    private void drain() throws IOException {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (read(buffer, 0, buffer.length) > 0) {
+        // The bytes are copied while they are read.
+      }
+    }
+
+    private void write(byte[] buffer, int offset, int length) {
+      if (failed) {
+        return;
+      }
+      try {
+        out.write(buffer, offset, length);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to cache response, disk full or unavailable.");
+        failed = true;
       }
-    } catch (IOException ex) {
-      ex.printStackTrace();
-      return "";
     }
-    return builder.toString();
   }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+/**
+ * Signals that the result of a request is not needed anymore. Long running
+ * work checks the token from time to time and stops as early as it can.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class CancellationToken {
+  private boolean cancelled = false;
+  private Runnable onCancelListener;
+
+  /**
+   * Cancels the request. Calling this more than once has no effect.
+   */
+  public void cancel() {
+    Runnable listener;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      listener = onCancelListener;
+      onCancelListener = null;
+    }
+    // Run outside the lock, as the listener might take locks of its own.
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Returns whether the request was cancelled.
+   */
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Sets the listener that is run once, when the token is cancelled. Passing
+   * <code>null</code> removes the listener.
+   * 
+   * @return false, if the token is already cancelled. The listener is not run
+   *         in that case.
+   */
+  synchronized boolean setOnCancelListener(Runnable listener) {
+    if (cancelled) {
+      return false;
+    }
+    onCancelListener = listener;
+    return true;
+  }
+}
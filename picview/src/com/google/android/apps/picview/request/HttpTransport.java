@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Performs HTTP requests for the fetchers. Implementations can be swapped, e.g.
+ * for an in-process fake that does not touch the network.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public interface HttpTransport {
+
+  /**
+   * The response to a request. It must be closed by the caller, so the
+   * connection can be reused.
+   */
+  public interface Response {
+    /** Returns the HTTP status code, e.g. 200. */
+    public int getStatusCode();
+
+    /** Returns the value of the given response header, or null. */
+    public String getHeader(String name);
+
+    /**
+     * Returns the number of bytes of the body as they are transferred, or -1
+     * if unknown.
+     */
+    public int getContentLength();
+
+    /**
+     * Returns the body. If it is compressed, it is decompressed while it is
+     * read.
+     */
+    public InputStream getBody() throws IOException;
+
+    /** Returns the number of bytes of the body that have been transferred. */
+    public long getBytesRead();
+
+    /**
+     * Closes the body and releases the connection, so it can be reused. The
+     * rest of the body might be read for this.
+     */
+    public void close();
+
+    /**
+     * Closes the connection without reading the rest of the body, e.g. as the
+     * request was cancelled. The connection is not reused. Closing the
+     * response afterwards does nothing.
+     */
+    public void abort();
+  }
+
+  /**
+   * Performs a GET request.
+   * 
+   * @param url
+   *          the URL to request
+   * @param headers
+   *          additional request headers, or <code>null</code>
+   * @param acceptGzip
+   *          whether the body may be compressed. This is worth it for text, but
+   *          not for images, which are compressed already.
+   * @return the response, which the caller has to close
+   */
+  public Response get(URL url, Map<String, String> headers, boolean acceptGzip)
+      throws IOException;
+}
@@ -20,13 +20,27 @@ import java.net.URL;
 
 import android.app.ProgressDialog;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.widget.ImageView;
 
 import com.google.android.apps.picview.R;
+import com.google.android.apps.picview.data.BitmapPool;
+import com.google.android.apps.picview.data.BitmapDecoder.Target;
+import com.google.android.apps.picview.request.ImageRequestDispatcher.Priority;
 
 /**
  * An asynchronous task that loads an image from the given URL.
+ * <p>
+ * Optionally, a placeholder image, e.g. a thumbnail of the same photo, is
+ * shown while the image is loaded. The placeholder is only taken from the
+ * caches and never fetched from the network.
+ * <p>
+ * The image view holds a reference on the image it shows in the
+ * {@link BitmapPool}. The reference is given up as soon as another image or
+ * the loading icon is set, so the image can be reused.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  */
@@ -35,10 +49,16 @@ public class ImageLoadingTask extends AsyncTask<Void, Integer, Void> {
   private final ImageView imageView;
   private final URL url;
   private final CachedImageFetcher cachedImageFetcher;
+  private final Target target;
+  private final Priority priority;
   private Bitmap bitmap;
   private boolean cached = false;
+  private URL placeholderUrl;
+  private Target placeholderTarget;
+  private Bitmap placeholder;
+  private boolean placeholderShown = false;
   private ProgressDialog progressDialog;
-  private boolean cancelUiUpdate = false;
+  private final CancellationToken cancellation = new CancellationToken();
 
   /**
    * Creates a new image loading task.
@@ -49,15 +69,22 @@ public class ImageLoadingTask extends AsyncTask<Void, Integer, Void> {
    *          the URL of the image
    * @param cachedImageFetcher
    *          the image fetcher and cache to use
+   * @param target
+   *          the size and format the image is decoded for
+   * @param priority
+   *          the priority with which this task is dispatched
    * @param progressDialog
    *          optional loading message. Shows a loading message if this is not
    *          null
    */
   public ImageLoadingTask(ImageView imageView, URL url,
-      CachedImageFetcher cachedImageFetcher, ProgressDialog progressDialog) {
+      CachedImageFetcher cachedImageFetcher, Target target, Priority priority,
+      ProgressDialog progressDialog) {
     this.imageView = imageView;
     this.url = url;
     this.cachedImageFetcher = cachedImageFetcher;
+    this.target = target;
+    this.priority = priority;
     this.progressDialog = progressDialog;
   }
 
@@ -70,54 +97,202 @@ public class ImageLoadingTask extends AsyncTask<Void, Integer, Void> {
    *          the URL of the image
    * @param cachedImageFetcher
    *          the image fetcher and cache to use
+   * @param target
+   *          the size and format the image is decoded for
    */
   public ImageLoadingTask(ImageView imageView, URL url,
-      CachedImageFetcher cachedImageFetcher) {
-    this(imageView, url, cachedImageFetcher, null);
+      CachedImageFetcher cachedImageFetcher, Target target) {
+    this(imageView, url, cachedImageFetcher, target,
+        Priority.VISIBLE_THUMBNAIL, null);
   }
 
   /**
-   * When set to true the {@link ImageLoadingTask} will not set the image bitmap
-   * in the image view.
+   * Returns the URL of the image this task loads.
+   */
+  public URL getUrl() {
+    return url;
+  }
+
+  /**
+   * Executes this task on the {@link ImageRequestDispatcher}, in the lane of
+   * its priority. Before Honeycomb, tasks can not be given an executor, so it
+   * runs on the thread pool of {@link AsyncTask} instead.
+   */
+  public void dispatch() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      executeOnExecutor(ImageRequestDispatcher.get().getExecutor(priority));
+    } else {
+      execute();
+    }
+  }
+
+  /**
+   * Sets the image that is shown, scaled to the image view, while the image is
+   * loaded. It is only shown, if it is in one of the caches.
+   * 
+   * @param url
+   *          the URL of the placeholder image
+   * @param target
+   *          the size and format the placeholder is decoded for
+   */
+  public void setPlaceholder(URL url, Target target) {
+    this.placeholderUrl = url;
+    this.placeholderTarget = target;
+  }
+
+  /**
+   * Sets the image, if it is already loaded, e.g. by a prefetch. It is shown
+   * right away and nothing is loaded. The task takes over the reference to the
+   * image.
+   */
+  public void setImage(Bitmap bitmap) {
+    this.bitmap = bitmap;
+  }
+
+  /**
+   * Cancels this task, e.g. because its image view now shows another image.
+   * The image is not set on the image view anymore. Unless another request is
+   * waiting for the same image, its download and decode is stopped as well.
    * <p>
-   * This only applies to fetches from the net. When the image is in cache, it
-   * is set immediately anyway.
+   * This only applies to fetches from the disk or the net. When the image is
+   * in memory, it is set immediately anyway.
    */
-  public void setCancelUiUpdate(boolean cancelUiUpdate) {
-    this.cancelUiUpdate = cancelUiUpdate;
+  public void cancelLoad() {
+    cancellation.cancel();
+    cancel(false);
   }
 
   @Override
   protected void onPreExecute() {
-    if (cachedImageFetcher.isCached(url)) {
-      bitmap = cachedImageFetcher.cachedFetchImage(url);
-      imageView.setImageBitmap(bitmap);
+    // Only the memory cache is read on the main thread. Anything else is
+    // loaded in the background.
+    if (bitmap == null) {
+      bitmap = cachedImageFetcher.peekImage(url);
+    }
+    if (bitmap != null) {
+      setImageBitmap(imageView, bitmap);
       cached = true;
+      return;
+    }
+    // A placeholder that is in memory is shown right away, without the loading
+    // message.
+    if (placeholderUrl != null) {
+      placeholder = cachedImageFetcher.peekImage(placeholderUrl);
+    }
+    if (placeholder != null) {
+      setImageBitmap(imageView, placeholder);
+      placeholderShown = true;
     } else {
       if (progressDialog != null) {
         // TODO: This sometimes throws a window leaked error, when
         // activities are quickly switched around.
         progressDialog.show();
       }
-      imageView.setImageResource(R.drawable.loading);
+      setImageResource(imageView, R.drawable.loading);
     }
   }
 
   @Override
   protected Void doInBackground(Void... params) {
     if (!cached) {
-      bitmap = cachedImageFetcher.cachedFetchImage(url);
+      if (placeholderUrl != null && !placeholderShown) {
+        placeholder = cachedImageFetcher.getCachedImage(placeholderUrl,
+            placeholderTarget);
+        if (placeholder != null) {
+          publishProgress();
+        }
+      }
+      bitmap = cachedImageFetcher.cachedFetchImage(url, target, cancellation);
     }
     return null;
   }
 
+  @Override
+  protected void onProgressUpdate(Integer... values) {
+    // The placeholder is in. We show it, unless the task has been cancelled in
+    // the meantime. The image view then owns the reference.
+    if (isCancelled()) {
+      return;
+    }
+    setImageBitmap(imageView, placeholder);
+    placeholderShown = true;
+    hideProgressDialog();
+  }
+
   @Override
   protected void onPostExecute(Void result) {
-    if (!cached && !cancelUiUpdate) {
-      imageView.setImageBitmap(bitmap);
+    if (!cached) {
+      releaseUnshownPlaceholder();
+      // If the load failed, we keep showing the placeholder.
+      if (bitmap != null || !placeholderShown) {
+        setImageBitmap(imageView, bitmap);
+      }
+    }
+    hideProgressDialog();
+  }
+
+  @Override
+  protected void onCancelled() {
+    // The load might have completed before it noticed the cancellation.
+    if (!cached && bitmap != null) {
+      BitmapPool.get().release(bitmap);
+    }
+    releaseUnshownPlaceholder();
+    hideProgressDialog();
+  }
+
+  /**
+   * Gives up the reference to the placeholder, if it never made it onto the
+   * image view.
+   */
+  private void releaseUnshownPlaceholder() {
+    if (placeholder != null && !placeholderShown) {
+      BitmapPool.get().release(placeholder);
     }
+    placeholder = null;
+  }
+
+  private void hideProgressDialog() {
     if (progressDialog != null && progressDialog.isShowing()) {
       progressDialog.hide();
     }
   }
+
+  /**
+   * Sets the given image on the image view. The reference to the given image
+   * is handed over to the image view, while the reference to the image shown
+   * before is given up.
+   */
+  public static void setImageBitmap(ImageView imageView, Bitmap bitmap) {
+    releaseShownBitmap(imageView);
+    imageView.setImageBitmap(bitmap);
+  }
+
+  /**
+   * Sets the given resource on the image view and gives up the reference to the
+   * image shown before.
+   */
+  public static void setImageResource(ImageView imageView, int resId) {
+    releaseShownBitmap(imageView);
+    imageView.setImageResource(resId);
+  }
+
+  /**
+   * Removes the image from the image view and gives up the reference to it,
+   * e.g. when the view is not shown anymore.
+   */
+  public static void releaseImage(ImageView imageView) {
+    releaseShownBitmap(imageView);
+    imageView.setImageDrawable(null);
+  }
+
+  private static void releaseShownBitmap(ImageView imageView) {
+    Drawable drawable = imageView.getDrawable();
+    if (drawable instanceof BitmapDrawable) {
+      Bitmap shown = ((BitmapDrawable) drawable).getBitmap();
+      if (shown != null) {
+        BitmapPool.get().release(shown);
+      }
+    }
+  }
 }
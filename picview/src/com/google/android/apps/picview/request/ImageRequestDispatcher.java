@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+import com.google.android.apps.picview.PicViewConfig;
+
+/**
+ * Runs all image requests on a fixed number of background worker threads.
+ * Requests are queued in priority lanes, so that e.g. the photo shown
+ * full-screen is loaded before the visible thumbnails, which in turn are
+ * loaded before anything that is only prefetched. Within a lane, requests are
+ * executed in the order they were submitted.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class ImageRequestDispatcher {
+
+  /**
+   * The priority lanes, from highest to lowest priority.
+   */
+  public static enum Priority {
+    /** The photo that is currently shown full-screen. */
+    FULL_SCREEN,
+    /** Thumbnails that are currently visible. */
+    VISIBLE_THUMBNAIL,
+    /** Images that are likely to be requested soon. */
+    PREFETCH,
+    /** Writing fetched images to the file system cache. */
+    DISK_WRITE
+  }
+
+  /**
+   * A runnable that is ordered by its priority and, within the same priority,
+   * by the order in which it was submitted.
+   */
+  private static class PrioritizedRunnable implements Runnable,
+      Comparable<PrioritizedRunnable> {
+    private final Runnable runnable;
+    private final Priority priority;
+    private final long sequence;
+
+    public PrioritizedRunnable(Runnable runnable, Priority priority,
+        long sequence) {
+      this.runnable = runnable;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      runnable.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedRunnable other) {
+      if (priority != other.priority) {
+        return priority.compareTo(other.priority);
+      }
+      return sequence < other.sequence ? -1
+          : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+
+  private static ImageRequestDispatcher dispatcher;
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Instantiates a new dispatcher.
+   * 
+   * @param workerThreads
+   *          the number of threads that execute requests
+   */
+  public ImageRequestDispatcher(int workerThreads) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            // Make sure the workers do not compete with the UI thread.
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+          }
+        }, "ImageRequest #" + threadCount.incrementAndGet());
+      }
+    };
+    executor = new ThreadPoolExecutor(workerThreads, workerThreads, 10,
+        TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the singleton instance of the {@link ImageRequestDispatcher}.
+   */
+  public static synchronized ImageRequestDispatcher get() {
+    if (dispatcher == null) {
+      dispatcher = new ImageRequestDispatcher(
+          PicViewConfig.IMAGE_REQUEST_THREADS);
+    }
+    return dispatcher;
+  }
+
+  /**
+   * Queues the given runnable in the lane with the given priority.
+   */
+  public void execute(Priority priority, Runnable runnable) {
+    executor.execute(new PrioritizedRunnable(runnable, priority, sequence
+        .getAndIncrement()));
+  }
+
+  /**
+   * Returns an {@link Executor} which queues all runnables in the lane with the
+   * given priority. This can be used to run an
+   * {@link android.os.AsyncTask} on this dispatcher.
+   */
+  public Executor getExecutor(final Priority priority) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        ImageRequestDispatcher.this.execute(priority, runnable);
+      }
+    };
+  }
+
+  /**
+   * Returns the number of requests that are waiting to be executed.
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Returns the number of requests that are currently being executed.
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
+
+/**
+ * Keeps track of the loads that are currently in flight, so that concurrent
+ * requests for the same key share a single load instead of each doing the work
+ * on their own.
+ * <p>
+ * Every load counts the requesters waiting for it. A requester that cancels its
+ * {@link CancellationToken} stops waiting right away. Once the last requester
+ * is gone, the load itself is cancelled, so it can stop its work early.
+ * <p>
+ * An entry only lives as long as its load is running, so the registry does not
+ * grow over time.
+ * <p>
+ * Values that are reference counted can override {@link #share(Object)} and
+ * {@link #discard(Object)}, so that every requester receives a reference of
+ * its own.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ * 
+ * @param <V>
+ *          the type of the loaded value
+ */
+public class InFlightRequests<V> {
+  private static final String TAG = InFlightRequests.class.getSimpleName();
+
+  /**
+   * Performs the actual load.
+   * 
+   * @param <V>
+   *          the type of the loaded value
+   */
+  public interface Loader<V> {
+    /**
+     * Loads the value.
+     * 
+     * @param cancellation
+     *          is cancelled once no requester is waiting for the value anymore
+     */
+    public V load(CancellationToken cancellation) throws Exception;
+  }
+
+  private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+  /**
+   * Runs the given loader, unless a load for the same key is already in flight.
+   * In that case the calling thread waits for the running load and receives its
+   * result.
+   * 
+   * @param key
+   *          the key identifying the load, e.g. the URL
+   * @param loader
+   *          performs the actual load, if none is in flight
+   * @return the loaded value or <code>null</code>, if the load failed
+   */
+  public V execute(String key, final Callable<V> loader) {
+    return execute(key, new Loader<V>() {
+      @Override
+      public V load(CancellationToken cancellation) throws Exception {
+        return loader.call();
+      }
+    }, new CancellationToken());
+  }
+
+  /**
+   * Runs the given loader, unless a load for the same key is already in flight.
+   * In that case the calling thread waits for the running load and receives its
+   * result.
+   * 
+   * @param key
+   *          the key identifying the load, e.g. the URL
+   * @param loader
+   *          performs the actual load, if none is in flight
+   * @param requester
+   *          cancelled by the caller, if it does not need the value anymore
+   * @return the loaded value or <code>null</code>, if the load failed or the
+   *         requester was cancelled
+   */
+  public V execute(String key, Loader<V> loader, CancellationToken requester) {
+    if (requester.isCancelled()) {
+      return null;
+    }
+
+    final Ticket ticket = new Ticket();
+    Flight flight;
+    boolean owner = false;
+    while (true) {
+      Flight created = new Flight(key);
+      flight = inFlight.putIfAbsent(key, created);
+      if (flight == null) {
+        flight = created;
+        owner = true;
+      }
+      if (flight.join(ticket)) {
+        break;
+      }
+      // The flight was abandoned by all its requesters, but has not been
+      // removed yet. We start over with a new one.
+      inFlight.remove(key, flight);
+    }
+
+    final Flight joined = flight;
+    if (!requester.setOnCancelListener(new Runnable() {
+      @Override
+      public void run() {
+        joined.leave(ticket);
+      }
+    })) {
+      joined.leave(ticket);
+      return null;
+    }
+
+    try {
+      if (owner) {
+        V value = null;
+        try {
+          value = loader.load(flight.cancellation);
+        } catch (Exception e) {
+          Log.e(TAG, "Load failed for " + key, e);
+        } finally {
+          inFlight.remove(key, flight);
+          flight.complete(value);
+        }
+      }
+      return flight.collect(ticket);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      flight.leave(ticket);
+      return null;
+    } finally {
+      requester.setOnCancelListener(null);
+    }
+  }
+
+  /**
+   * Returns the number of loads that are currently in flight.
+   */
+  public int size() {
+    return inFlight.size();
+  }
+
+  /**
+   * Returns the share of the loaded value that is handed to a single
+   * requester. By default all requesters receive the same value.
+   */
+  protected V share(V value) {
+    return value;
+  }
+
+  /**
+   * Gives up a value that was loaded or shared, but is not handed to anyone.
+   * Once all requesters received their share, the loaded value itself is
+   * discarded. By default this does nothing.
+   */
+  protected void discard(V value) {
+  }
+
+  /**
+   * A single requester of a load and the share it receives.
+   */
+  private class Ticket {
+    private boolean left = false;
+    private boolean collected = false;
+    private V value;
+  }
+
+  /**
+   * A single load and the requesters waiting for it.
+   */
+  private class Flight {
+    private final String key;
+    private final CancellationToken cancellation = new CancellationToken();
+    private final List<Ticket> requesters = new ArrayList<Ticket>();
+    private boolean done = false;
+    private boolean abandoned = false;
+
+    private Flight(String key) {
+      this.key = key;
+    }
+
+    /**
+     * Adds a requester. Returns false, if the load was already abandoned.
+     */
+    private synchronized boolean join(Ticket ticket) {
+      if (abandoned) {
+        return false;
+      }
+      requesters.add(ticket);
+      return true;
+    }
+
+    /**
+     * Removes a requester. The load is cancelled, when it was the last one.
+     */
+    private void leave(Ticket ticket) {
+      synchronized (this) {
+        if (ticket.left) {
+          return;
+        }
+        ticket.left = true;
+        // Wakes up the requester that left, if it is waiting.
+        notifyAll();
+        if (done) {
+          // Its share was made, but is never picked up.
+          if (!ticket.collected && ticket.value != null) {
+            discard(ticket.value);
+          }
+          ticket.value = null;
+          return;
+        }
+        requesters.remove(ticket);
+        if (!requesters.isEmpty()) {
+          return;
+        }
+        abandoned = true;
+      }
+      inFlight.remove(key, this);
+      cancellation.cancel();
+    }
+
+    /**
+     * Hands a share of the loaded value to every requester that is still
+     * waiting, then gives up the loaded value itself.
+     */
+    private synchronized void complete(V value) {
+      if (value != null) {
+        for (Ticket ticket : requesters) {
+          ticket.value = share(value);
+        }
+        discard(value);
+      }
+      done = true;
+      notifyAll();
+    }
+
+    /**
+     * Waits until the load is complete or the given requester left, and
+     * returns the share of the requester.
+     */
+    private synchronized V collect(Ticket ticket) throws InterruptedException {
+      while (!done && !ticket.left) {
+        wait();
+      }
+      if (ticket.left) {
+        return null;
+      }
+      ticket.collected = true;
+      return ticket.value;
+    }
+  }
+}
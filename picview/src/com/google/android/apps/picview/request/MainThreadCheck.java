@@ -0,0 +1,50 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.apps.picview.PicViewConfig;
+
+/**
+ * Flags disk and network access on the main thread, which must only ever read
+ * from memory. This is a debug mode, enabled through
+ * {@link PicViewConfig#FLAG_MAIN_THREAD_ACCESS}, and does nothing otherwise.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+class MainThreadCheck {
+  private static final String TAG = MainThreadCheck.class.getSimpleName();
+
+  private MainThreadCheck() {
+  }
+
+  /**
+   * Logs the given access along with the stack trace leading to it, if it
+   * happens on the main thread.
+   * 
+   * @param access
+   *          describes the access, e.g. which cache is read
+   */
+  static void flagIfOnMainThread(String access) {
+    if (PicViewConfig.FLAG_MAIN_THREAD_ACCESS
+        && Looper.myLooper() == Looper.getMainLooper()) {
+      Log.e(TAG, access + " on the main thread", new Throwable());
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+
+import com.google.android.apps.picview.request.AsyncRequestTask.IncrementalCallback;
+
+/**
+ * Loads a feed page by page. The first page is loaded right away, the next
+ * one whenever {@link #loadNextPage()} is called, e.g. as the user scrolls
+ * towards the end of the loaded entries. Only one page is loaded at a time.
+ * <p>
+ * Each page is requested and cached separately, so a page that changed does
+ * not invalidate the others. Within a changed page, only the entries that
+ * were added, removed or changed are replaced. This class must only be used
+ * on the UI thread.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ * 
+ * @param <E>
+ *          the type of the feed entries
+ */
+public class PagedFeedLoader<E> {
+
+  public static interface Listener<E> {
+    /**
+     * Called when entries were appended, while a page is being parsed.
+     */
+    public void entriesAdded(List<E> entries);
+
+    /**
+     * Called when entries that were loaded before changed, e.g. as a newer
+     * version of a page was found. Entries that did not change are kept, so
+     * this is called once for every run of changed entries, in order.
+     * 
+     * @param position
+     *          the position of the first replaced entry
+     * @param removed
+     *          the number of entries that were removed from this position
+     * @param added
+     *          the entries that were inserted at this position instead
+     */
+    public void entriesReplaced(int position, int removed, List<E> added);
+
+    public void error(String message);
+  }
+
+  private final CachedWebRequestFetcher fetcher;
+  private final PagedUrlProvider urlProvider;
+  private final ResponseParser<List<E>> parser;
+  private final String loadingMessage;
+  private final Context context;
+  private final Listener<E> listener;
+
+  private final List<E> entries = new ArrayList<E>();
+
+  /** The number of entries on each of the loaded pages. */
+  private final List<Integer> pageSizes = new ArrayList<Integer>();
+  private boolean loading = false;
+  private boolean nextPageRequested = false;
+  private boolean complete = false;
+
+  /**
+   * The number of entries handed to {@link #resumeAfter(List)} beyond the
+   * last full page. They are checked against their page once it is loaded.
+   */
+  private int unconfirmed = 0;
+
+  /**
+   * @param loadingMessage
+   *          the message shown while the first page is loading, or
+   *          <code>null</code>
+   */
+  public PagedFeedLoader(CachedWebRequestFetcher fetcher,
+      PagedUrlProvider urlProvider, ResponseParser<List<E>> parser,
+      String loadingMessage, Context context, Listener<E> listener) {
+    this.fetcher = fetcher;
+    this.urlProvider = urlProvider;
+    this.parser = parser;
+    this.loadingMessage = loadingMessage;
+    this.context = context;
+    this.listener = listener;
+  }
+
+  /**
+   * Returns the entries loaded so far.
+   */
+  public List<E> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Continues after the given entries, instead of loading them again, e.g. as
+   * another loader of the same feed loaded them already. Must be called before
+   * the first page is loaded.
+   * <p>
+   * Entries beyond the last full page might be an incomplete page. That page
+   * is loaded next, as a whole, and only its changes are reported.
+   */
+  public void resumeAfter(List<E> loaded) {
+    int pageSize = urlProvider.getPageSize();
+    int fullPages = loaded.size() / pageSize;
+    entries.addAll(loaded);
+    for (int i = 0; i < fullPages; ++i) {
+      pageSizes.add(pageSize);
+    }
+    unconfirmed = loaded.size() - fullPages * pageSize;
+  }
+
+  /**
+   * Loads the next page, unless the last one has been loaded already. If a
+   * page is loading right now, the next one is loaded afterwards.
+   */
+  public void loadNextPage() {
+    if (complete) {
+      return;
+    }
+    if (loading) {
+      nextPageRequested = true;
+      return;
+    }
+    loading = true;
+    nextPageRequested = false;
+
+    final int page = pageSizes.size();
+    final int resumed = unconfirmed;
+    unconfirmed = 0;
+    AsyncRequestTask<List<E>> request = new AsyncRequestTask<List<E>>(
+        fetcher, urlProvider.getPageUrl(page), parser, false,
+        entries.isEmpty() ? loadingMessage : null, context,
+        new IncrementalCallback<List<E>>() {
+          private int added = resumed;
+          private boolean loaded = false;
+
+          @Override
+          public void partial(List<E> part) {
+            if (resumed > 0) {
+              // The page is compared with the resumed entries as a whole.
+              return;
+            }
+            entries.addAll(part);
+            added += part.size();
+            listener.entriesAdded(part);
+          }
+
+          @Override
+          public void success(List<E> data) {
+            if (!loaded) {
+              loaded = true;
+              pageLoaded(page, added, data);
+            } else {
+              // A newer version of the page was found while revalidating it.
+              replacePage(getPageStart(page), pageSizes.get(page), data);
+              pageSizes.set(page, data.size());
+            }
+          }
+
+          @Override
+          public void error(String message) {
+            // The entries of an incomplete page are dropped. No further pages
+            // are loaded, so the feed does not get out of order.
+            int start = getPageStart(page);
+            loading = false;
+            complete = true;
+            if (added > 0) {
+              replaceEntries(start, added, new ArrayList<E>());
+            }
+            listener.error(message);
+          }
+        });
+    request.execute();
+  }
+
+  /**
+   * Called once a page was loaded, of which the given number of entries was
+   * added already while it was parsed.
+   */
+  private void pageLoaded(int page, int added, List<E> data) {
+    replacePage(getPageStart(page), added, data);
+    pageSizes.add(data.size());
+    loading = false;
+    complete = data.size() < urlProvider.getPageSize();
+    if (nextPageRequested) {
+      loadNextPage();
+    }
+  }
+
+  /**
+   * Replaces the given number of entries, starting at the given position, with
+   * the new entries of a page. Only the runs of entries that were added,
+   * removed or changed are replaced. They are found through the longest
+   * common subsequence of the old and the new entries.
+   */
+  private void replacePage(int start, int oldSize, List<E> data) {
+    List<E> old = new ArrayList<E>(entries.subList(start, start + oldSize));
+    if (old.equals(data)) {
+      return;
+    }
+    int n = old.size();
+    int m = data.size();
+
+    // Entries are compared by their hash codes first, so most comparisons
+    // are between integers.
+    int[] oldHashes = getHashCodes(old);
+    int[] newHashes = getHashCodes(data);
+    boolean[][] same = new boolean[n][m];
+    // The length of the longest common subsequence of the old entries from i
+    // and the new entries from j on.
+    int[][] common = new int[n + 1][m + 1];
+    for (int i = n - 1; i >= 0; --i) {
+      for (int j = m - 1; j >= 0; --j) {
+        same[i][j] = oldHashes[i] == newHashes[j]
+            && old.get(i).equals(data.get(j));
+        if (same[i][j]) {
+          common[i][j] = common[i + 1][j + 1] + 1;
+        } else {
+          common[i][j] = Math.max(common[i + 1][j], common[i][j + 1]);
+        }
+      }
+    }
+
+    int i = 0;
+    int j = 0;
+    while (i < n || j < m) {
+      if (i < n && j < m && same[i][j]) {
+        ++i;
+        ++j;
+        continue;
+      }
+      // Collect the run of changes up to the next common entry. The entries
+      // before it have been replaced already, so it starts at start + j.
+      int oldFrom = i;
+      int newFrom = j;
+      while ((i < n || j < m) && !(i < n && j < m && same[i][j])) {
+        if (j == m || (i < n && common[i + 1][j] >= common[i][j + 1])) {
+          ++i;
+        } else {
+          ++j;
+        }
+      }
+      replaceEntries(start + newFrom, i - oldFrom, new ArrayList<E>(data
+          .subList(newFrom, j)));
+    }
+  }
+
+  /**
+   * Replaces the given number of entries at the given position with the
+   * given ones and notifies the listener.
+   */
+  private void replaceEntries(int position, int removed, List<E> added) {
+    entries.subList(position, position + removed).clear();
+    entries.addAll(position, added);
+    listener.entriesReplaced(position, removed, added);
+  }
+
+  private static int[] getHashCodes(List<?> list) {
+    int[] hashCodes = new int[list.size()];
+    for (int i = 0; i < hashCodes.length; ++i) {
+      hashCodes[i] = list.get(i).hashCode();
+    }
+    return hashCodes;
+  }
+
+  /**
+   * Returns the position of the first entry of the given page.
+   */
+  private int getPageStart(int page) {
+    int start = 0;
+    for (int i = 0; i < page; ++i) {
+      start += pageSizes.get(i);
+    }
+    return start;
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+/**
+ * Provides the URLs of a feed that is requested in pages.
+ * {@link #getUrl()} returns the URL of the first page.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public interface PagedUrlProvider extends UrlProvider {
+  /**
+   * Returns the URL of the page with the given index, starting at 0.
+   */
+  public String getPageUrl(int page);
+
+  /**
+   * Returns the maximum number of entries on a page. If a page has fewer
+   * entries, it is the last one.
+   */
+  public int getPageSize();
+}
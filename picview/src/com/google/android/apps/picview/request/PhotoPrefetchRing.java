@@ -0,0 +1,266 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.apps.picview.data.BitmapDecoder.Target;
+import com.google.android.apps.picview.data.BitmapPool;
+import com.google.android.apps.picview.data.ImageMemoryCache;
+import com.google.android.apps.picview.request.ImageRequestDispatcher.Priority;
+
+/**
+ * Prefetches the photos around the one currently shown, so that paging in
+ * either direction does not have to wait for the network.
+ * <p>
+ * The ring reaches further in the direction the user is paging. The decoded
+ * photos are held until they fall out of the ring, but never more than fit
+ * into the byte budget. Photos closer to the current one take precedence.
+ * When the user pages to a held photo, it is handed to the viewer through
+ * {@link #take(URL)}.
+ * <p>
+ * This class is not thread-safe and must only be used from the UI thread.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class PhotoPrefetchRing {
+
+  /**
+   * Provides the URLs of the photos that can be paged through.
+   */
+  public interface Source {
+    /** Returns the number of photos. */
+    public int getCount();
+
+    /** Returns the URL of the photo at the given index, or null. */
+    public URL getUrl(int index);
+  }
+
+  /** A photo in the ring, which is being prefetched or already held. */
+  private static class Slot {
+    private final String url;
+    private final CancellationToken cancellation = new CancellationToken();
+    private Bitmap bitmap;
+
+    private Slot(String url) {
+      this.url = url;
+    }
+  }
+
+  private final Source source;
+  private final CachedImageFetcher cachedImageFetcher;
+  private final Target target;
+  private final int ahead;
+  private final int behind;
+  private final long budgetBytes;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Map<Integer, Slot> slots = new HashMap<Integer, Slot>();
+
+  private int currentIndex = -1;
+  private boolean forward = true;
+
+  /**
+   * Creates a new prefetch ring.
+   * 
+   * @param source
+   *          provides the URLs of the photos
+   * @param cachedImageFetcher
+   *          used to fetch the photos
+   * @param target
+   *          the size and format the photos are decoded for
+   * @param ahead
+   *          the number of photos prefetched in paging direction
+   * @param behind
+   *          the number of photos prefetched against paging direction
+   * @param budgetBytes
+   *          the maximum number of bytes the held photos may take up
+   */
+  public PhotoPrefetchRing(Source source,
+      CachedImageFetcher cachedImageFetcher, Target target, int ahead,
+      int behind, long budgetBytes) {
+    this.source = source;
+    this.cachedImageFetcher = cachedImageFetcher;
+    this.target = target;
+    this.ahead = ahead;
+    this.behind = behind;
+    this.budgetBytes = budgetBytes;
+  }
+
+  /**
+   * Moves the ring to the given photo. Prefetches the photos that are now in
+   * the ring and releases the ones that fell out of it.
+   */
+  public void moveTo(int index) {
+    if (currentIndex != -1 && index != currentIndex) {
+      forward = index > currentIndex;
+    }
+    currentIndex = index;
+    update();
+  }
+
+  /**
+   * Takes the photo with the given URL out of the ring, if it is already
+   * held. The reference to the photo is handed over to the caller, who has to
+   * give it up through {@link BitmapPool#release(Bitmap)}.
+   * 
+   * @return the photo, or null if it is not held
+   */
+  public Bitmap take(URL url) {
+    String key = url.toString();
+    for (Slot slot : slots.values()) {
+      if (slot.bitmap != null && slot.url.equals(key)) {
+        Bitmap bitmap = slot.bitmap;
+        slot.bitmap = null;
+        return bitmap;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Cancels all prefetches and releases all held photos.
+   */
+  public void clear() {
+    for (Slot slot : slots.values()) {
+      dispose(slot);
+    }
+    slots.clear();
+    currentIndex = -1;
+  }
+
+  /**
+   * Returns the indices in the ring, nearest first. Photos in paging direction
+   * come before photos at the same distance against it.
+   */
+  private List<Integer> getRingIndices() {
+    List<Integer> indices = new ArrayList<Integer>();
+    int count = source.getCount();
+    int direction = forward ? 1 : -1;
+    for (int distance = 1; distance <= Math.max(ahead, behind); ++distance) {
+      int aheadIndex = currentIndex + distance * direction;
+      int behindIndex = currentIndex - distance * direction;
+      if (distance <= ahead && aheadIndex >= 0 && aheadIndex < count) {
+        indices.add(aheadIndex);
+      }
+      if (distance <= behind && behindIndex >= 0 && behindIndex < count) {
+        indices.add(behindIndex);
+      }
+    }
+    return indices;
+  }
+
+  /**
+   * Makes the slots match the ring around the current index, within budget.
+   */
+  private void update() {
+    if (currentIndex == -1) {
+      return;
+    }
+
+    // Takes the photos, nearest first, until the budget is used up. Held
+    // photos count with their actual size, the others with an estimate.
+    Map<Integer, Slot> kept = new HashMap<Integer, Slot>();
+    long bytes = 0;
+    for (int index : getRingIndices()) {
+      Slot slot = slots.remove(index);
+      bytes += slot != null && slot.bitmap != null ? ImageMemoryCache
+          .getByteCount(slot.bitmap) : estimateByteCount();
+      if (bytes > budgetBytes) {
+        if (slot != null) {
+          dispose(slot);
+        }
+        break;
+      }
+      if (slot == null) {
+        slot = startPrefetch(index);
+      }
+      if (slot != null) {
+        kept.put(index, slot);
+      }
+    }
+
+    // Whatever is left fell out of the ring.
+    for (Slot slot : slots.values()) {
+      dispose(slot);
+    }
+    slots.clear();
+    slots.putAll(kept);
+  }
+
+  /**
+   * Starts prefetching the photo at the given index.
+   * 
+   * @return the new slot, or null if the photo has no valid URL
+   */
+  private Slot startPrefetch(int index) {
+    final URL url = source.getUrl(index);
+    if (url == null) {
+      return null;
+    }
+    final Slot slot = new Slot(url.toString());
+    ImageRequestDispatcher.get().execute(Priority.PREFETCH, new Runnable() {
+      @Override
+      public void run() {
+        final Bitmap bitmap = cachedImageFetcher.cachedFetchImage(url, target,
+            slot.cancellation);
+        if (bitmap == null) {
+          return;
+        }
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (slot.cancellation.isCancelled()) {
+              BitmapPool.get().release(bitmap);
+              return;
+            }
+            slot.bitmap = bitmap;
+            // The actual size might differ from the estimate.
+            update();
+          }
+        });
+      }
+    });
+    return slot;
+  }
+
+  /**
+   * Cancels the prefetch of the given slot and releases its photo.
+   */
+  private void dispose(Slot slot) {
+    slot.cancellation.cancel();
+    if (slot.bitmap != null) {
+      BitmapPool.get().release(slot.bitmap);
+      slot.bitmap = null;
+    }
+  }
+
+  /**
+   * Estimates the size of a decoded photo, before it is loaded.
+   */
+  private long estimateByteCount() {
+    int bytesPerPixel = target.config == Bitmap.Config.ARGB_8888 ? 4 : 2;
+    return (long) target.width * target.height * bytesPerPixel;
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+
+import com.google.android.apps.picview.data.Album;
+import com.google.android.apps.picview.data.FeedDatabase;
+
+/**
+ * Parses a Picasa feed of the albums of an account and stores the parsed
+ * albums in the {@link FeedDatabase}, so they do not have to be parsed again.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class PicasaAlbumsFeed implements ResponseParser<List<Album>>,
+    ResponseStore<List<Album>> {
+
+  @Override
+  public List<Album> parse(InputStream body,
+      PartialResultListener<List<Album>> listener) throws Exception {
+    return Album.parseFromPicasaXml(body, listener);
+  }
+
+  @Override
+  public List<Album> load(URL url) {
+    PicasaFeedKey key = PicasaFeedKey.fromUrl(url);
+    FeedDatabase db = FeedDatabase.get();
+    if (key == null || !db.isReady()) {
+      return null;
+    }
+    return db.queryAlbums(key.account, key.start, key.count);
+  }
+
+  @Override
+  public boolean store(URL url, List<Album> content) {
+    PicasaFeedKey key = PicasaFeedKey.fromUrl(url);
+    FeedDatabase db = FeedDatabase.get();
+    if (key == null || !db.isReady()) {
+      return false;
+    }
+    return db.putAlbums(key.account, key.start, key.count, content);
+  }
+}
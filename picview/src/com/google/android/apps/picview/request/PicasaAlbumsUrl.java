@@ -17,21 +17,36 @@
 package com.google.android.apps.picview.request;
 
 /**
- * A simple class that generates a Picasa albums feed URL for a given user.
+ * A simple class that generates the Picasa albums feed URLs for a given user.
  * 
  * @author haeberling@google.com (Sascha Haeberling)
  */
-public class PicasaAlbumsUrl implements UrlProvider {
+public class PicasaAlbumsUrl extends PicasaFeedUrl {
   private static final String BASE_URL = "http://picasaweb.google.com/data/feed/api/user/";
 
+  /** Only the elements of the entries that are parsed. */
+  private static final String FIELDS = "entry(title,link,media:group(media:thumbnail))";
+
   private String user;
+  private int thumbnailSize;
 
-  public PicasaAlbumsUrl(String user) {
+  /**
+   * @param thumbnailSize
+   *          the size album thumbnails are shown at, in pixels
+   */
+  public PicasaAlbumsUrl(String user, int thumbnailSize) {
     this.user = user;
+    this.thumbnailSize = thumbnailSize;
   }
 
   @Override
-  public String getUrl() {
+  protected String getFeedUrl() {
     return BASE_URL + user;
   }
+
+  @Override
+  protected void addParameters(UrlBuilder builder) {
+    builder.setParameter("fields", FIELDS);
+    builder.setParameter("thumbsize", getImageSize(thumbnailSize, true));
+  }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.net.URL;
+
+/**
+ * The account and album a Picasa feed belongs to and the page of it that is
+ * requested, taken from its URL. Album feeds look like
+ * <code>.../user/{account}</code>, photo feeds like
+ * <code>.../user/{account}/albumid/{id}</code>. Pages are requested with the
+ * <code>start-index</code> and <code>max-results</code> parameters.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+class PicasaFeedKey {
+  private static final String USER_SEGMENT = "/user/";
+  private static final String PARAM_START_INDEX = "start-index";
+  private static final String PARAM_MAX_RESULTS = "max-results";
+
+  public final String account;
+
+  /** The part of the path that identifies the album, empty for album feeds. */
+  public final String album;
+
+  /** The position of the first entry of the page, starting at 0. */
+  public final int start;
+
+  /** The maximum number of entries of the page, negative for all of them. */
+  public final int count;
+
+  private PicasaFeedKey(String account, String album, int start, int count) {
+    this.account = account;
+    this.album = album;
+    this.start = start;
+    this.count = count;
+  }
+
+  /**
+   * Returns the key of the feed with the given URL, or <code>null</code> if it
+   * is not a Picasa user feed. Query parameters other than the ones selecting
+   * the page are not part of the key.
+   */
+  public static PicasaFeedKey fromUrl(URL url) {
+    String path = url.getPath();
+    int start = path.indexOf(USER_SEGMENT);
+    if (start == -1) {
+      return null;
+    }
+    start += USER_SEGMENT.length();
+    int end = path.indexOf('/', start);
+    String account = end == -1 ? path.substring(start) : path.substring(
+        start, end);
+    String album = end == -1 ? "" : path.substring(end + 1);
+
+    // The start index of Picasa feeds starts at 1.
+    int startIndex = getIntParameter(url, PARAM_START_INDEX, 1);
+    int maxResults = getIntParameter(url, PARAM_MAX_RESULTS, -1);
+    return new PicasaFeedKey(account, album, Math.max(0, startIndex - 1),
+        maxResults);
+  }
+
+  /**
+   * Returns the value of an integer query parameter, or the default value if
+   * it is missing or not a number.
+   */
+  private static int getIntParameter(URL url, String name, int defaultValue) {
+    String query = url.getQuery();
+    if (query == null) {
+      return defaultValue;
+    }
+    for (String parameter : query.split("&")) {
+      if (parameter.startsWith(name + "=")) {
+        try {
+          return Integer.parseInt(parameter.substring(name.length() + 1));
+        } catch (NumberFormatException e) {
+          return defaultValue;
+        }
+      }
+    }
+    return defaultValue;
+  }
+}
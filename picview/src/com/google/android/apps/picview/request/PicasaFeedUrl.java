@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import com.google.android.apps.picview.PicViewConfig;
+
+/**
+ * Base class for Picasa feed URLs, which are requested in pages of
+ * {@link PicViewConfig#FEED_PAGE_SIZE} entries. Subclasses narrow the entries
+ * down to the elements that are parsed, and request images in the sizes they
+ * are shown at.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public abstract class PicasaFeedUrl implements PagedUrlProvider {
+
+  /** The image sizes Picasa serves, in pixels of the longer side. */
+  private static final int[] IMAGE_SIZES = { 32, 48, 64, 72, 94, 104, 110,
+      128, 144, 150, 160, 200, 220, 288, 320, 400, 512, 576, 640, 720, 800,
+      912, 1024, 1152, 1280, 1440, 1600 };
+
+  /** The image sizes Picasa serves as square crops. */
+  private static final int[] CROPPED_IMAGE_SIZES = { 32, 48, 64, 72, 104, 144,
+      150, 160 };
+
+  /**
+   * Returns the URL of the whole feed.
+   */
+  protected abstract String getFeedUrl();
+
+  /**
+   * Adds the parameters that are specific to the feed.
+   */
+  protected abstract void addParameters(UrlBuilder builder);
+
+  @Override
+  public String getUrl() {
+    return getPageUrl(0);
+  }
+
+  @Override
+  public String getPageUrl(int page) {
+    UrlBuilder builder = new UrlBuilder(getFeedUrl());
+    // The start index of Picasa feeds starts at 1.
+    builder.setParameter("start-index", page * getPageSize() + 1);
+    builder.setParameter("max-results", getPageSize());
+    addParameters(builder);
+    return builder.getUrl();
+  }
+
+  @Override
+  public int getPageSize() {
+    return PicViewConfig.FEED_PAGE_SIZE;
+  }
+
+  /**
+   * Returns the value of the <code>thumbsize</code> or <code>imgmax</code>
+   * parameter for images that are shown at the given size.
+   * 
+   * @param size
+   *          the size of the longer side, in pixels
+   * @param cropped
+   *          whether square crops are requested
+   */
+  protected static String getImageSize(int size, boolean cropped) {
+    int[] sizes = cropped ? CROPPED_IMAGE_SIZES : IMAGE_SIZES;
+    // The smallest size that does not need to be scaled up, if there is one.
+    int result = sizes[sizes.length - 1];
+    for (int i = sizes.length - 1; i >= 0 && sizes[i] >= size; --i) {
+      result = sizes[i];
+    }
+    return cropped ? result + "c" : String.valueOf(result);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+
+import com.google.android.apps.picview.data.FeedDatabase;
+import com.google.android.apps.picview.data.Photo;
+
+/**
+ * Parses a Picasa feed of the photos of an album and stores the parsed photos
+ * in the {@link FeedDatabase}, so they do not have to be parsed again.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class PicasaPhotosFeed implements ResponseParser<List<Photo>>,
+    ResponseStore<List<Photo>> {
+
+  @Override
+  public List<Photo> parse(InputStream body,
+      PartialResultListener<List<Photo>> listener) throws Exception {
+    return Photo.parseFromPicasaXml(body, listener);
+  }
+
+  @Override
+  public List<Photo> load(URL url) {
+    PicasaFeedKey key = PicasaFeedKey.fromUrl(url);
+    FeedDatabase db = FeedDatabase.get();
+    if (key == null || !db.isReady()) {
+      return null;
+    }
+    return db.queryPhotos(key.account, key.album, key.start, key.count);
+  }
+
+  @Override
+  public boolean store(URL url, List<Photo> content) {
+    PicasaFeedKey key = PicasaFeedKey.fromUrl(url);
+    FeedDatabase db = FeedDatabase.get();
+    if (key == null || !db.isReady()) {
+      return false;
+    }
+    return db.putPhotos(key.account, key.album, key.start, key.count,
+        content);
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+/**
+ * Generates the URLs of a Picasa photos feed, given the feed URL of the album.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class PicasaPhotosUrl extends PicasaFeedUrl {
+  /** Only the elements of the entries that are parsed. */
+  private static final String FIELDS = "entry(title,media:group(media:content,media:thumbnail))";
+
+  private String gdataUrl;
+  private int thumbnailSize;
+  private int photoSize;
+
+  /**
+   * @param thumbnailSize
+   *          the size photo thumbnails are shown at, in pixels
+   * @param photoSize
+   *          the size of the longer side of photos shown full-screen, in
+   *          pixels
+   */
+  public PicasaPhotosUrl(String gdataUrl, int thumbnailSize, int photoSize) {
+    this.gdataUrl = gdataUrl;
+    this.thumbnailSize = thumbnailSize;
+    this.photoSize = photoSize;
+  }
+
+  @Override
+  protected String getFeedUrl() {
+    return gdataUrl;
+  }
+
+  @Override
+  protected void addParameters(UrlBuilder builder) {
+    builder.setParameter("fields", FIELDS);
+    builder.setParameter("thumbsize", getImageSize(thumbnailSize, false));
+    builder.setParameter("imgmax", getImageSize(photoSize, false));
+  }
+}
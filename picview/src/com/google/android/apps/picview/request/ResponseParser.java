@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.io.InputStream;
+
+/**
+ * Turns the body of a response into the object it describes, e.g. a list of
+ * albums. The body is streamed into the parser, so the response never has to
+ * be held in memory as a whole.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ * 
+ * @param <T>
+ *          the type of the parsed object
+ */
+public interface ResponseParser<T> {
+  /**
+   * Receives parts of the result while the body is still being parsed, e.g.
+   * batches of albums.
+   */
+  public static interface PartialResultListener<T> {
+    public void onPartialResult(T part);
+  }
+
+  /**
+   * Parses the given body. The stream is closed by the caller.
+   * 
+   * @param listener
+   *          notified of parts of the result as they are parsed, may be
+   *          <code>null</code>. Parsers that cannot split their result may
+   *          ignore it.
+   * @throws Exception
+   *           if the body is malformed or cannot be read. The response is not
+   *           cached in that case.
+   */
+  public T parse(InputStream body, PartialResultListener<T> listener)
+      throws Exception;
+}
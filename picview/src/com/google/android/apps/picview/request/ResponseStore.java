@@ -0,0 +1,47 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.net.URL;
+
+/**
+ * Stores parsed responses, so a response that is still up to date can be
+ * loaded without parsing it again. If a {@link ResponseParser} implements this
+ * as well, the {@link CachedWebRequestFetcher} stores its results instead of
+ * the raw response bodies.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ * 
+ * @param <T>
+ *          the type of the parsed object
+ */
+public interface ResponseStore<T> {
+  /**
+   * Loads the content stored for the given URL.
+   * 
+   * @return the content, or <code>null</code> if nothing is stored
+   */
+  public T load(URL url);
+
+  /**
+   * Stores the content of the response to the given URL, replacing what was
+   * stored for it before.
+   * 
+   * @return whether the content was stored
+   */
+  public boolean store(URL url, T content);
+}
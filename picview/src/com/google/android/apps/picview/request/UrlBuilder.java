@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds a URL from a base URL and query parameters. The parameters are always
+ * ordered by name, so the same request always results in the same URL, which
+ * is used as its cache key.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class UrlBuilder implements UrlProvider {
+  private static final String ENCODING = "UTF-8";
+
+  private final String baseUrl;
+  private final Map<String, String> parameters = new TreeMap<String, String>();
+
+  /**
+   * @param url
+   *          the base URL. Query parameters it already has are kept.
+   */
+  public UrlBuilder(String url) {
+    int queryStart = url.indexOf('?');
+    if (queryStart == -1) {
+      baseUrl = url;
+      return;
+    }
+    baseUrl = url.substring(0, queryStart);
+    for (String parameter : url.substring(queryStart + 1).split("&")) {
+      int separator = parameter.indexOf('=');
+      if (separator == -1) {
+        continue;
+      }
+      parameters.put(decode(parameter.substring(0, separator)),
+          decode(parameter.substring(separator + 1)));
+    }
+  }
+
+  /**
+   * Sets a parameter, replacing the value it had before.
+   */
+  public UrlBuilder setParameter(String name, String value) {
+    parameters.put(name, value);
+    return this;
+  }
+
+  /**
+   * Sets a parameter, replacing the value it had before.
+   */
+  public UrlBuilder setParameter(String name, int value) {
+    return setParameter(name, String.valueOf(value));
+  }
+
+  @Override
+  public String getUrl() {
+    if (parameters.isEmpty()) {
+      return baseUrl;
+    }
+    StringBuilder url = new StringBuilder(baseUrl);
+    char separator = '?';
+    for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+      url.append(separator).append(encode(parameter.getKey())).append('=')
+          .append(encode(parameter.getValue()));
+      separator = '&';
+    }
+    return url.toString();
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace();
+    }
+    return value;
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace();
+    }
+    return value;
+  }
+}
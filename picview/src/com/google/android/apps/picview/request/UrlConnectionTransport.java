@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.google.android.apps.picview.PicViewConfig;
+
+/**
+ * The {@link HttpTransport} that goes to the network through
+ * {@link HttpURLConnection}.
+ * <p>
+ * Every request has a connect and read deadline. The number of concurrent
+ * requests to the same host is limited, further requests wait for a
+ * connection to be released. Closing a response closes its body, so the
+ * connection can be kept alive and reused.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class UrlConnectionTransport implements HttpTransport {
+  private static UrlConnectionTransport transport;
+
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final int maxConnectionsPerHost;
+  private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+  private final AtomicLong totalBytesRead = new AtomicLong();
+
+  /**
+   * Returns the transport shared by all fetchers.
+   */
+  public static synchronized UrlConnectionTransport get() {
+    if (transport == null) {
+      transport = new UrlConnectionTransport(
+          PicViewConfig.HTTP_CONNECT_TIMEOUT, PicViewConfig.HTTP_READ_TIMEOUT,
+          PicViewConfig.HTTP_MAX_CONNECTIONS_PER_HOST);
+    }
+    return transport;
+  }
+
+  /**
+   * Creates a new transport.
+   * 
+   * @param connectTimeout
+   *          the time to wait for a connection, in ms
+   * @param readTimeout
+   *          the time to wait for data while reading, in ms
+   * @param maxConnectionsPerHost
+   *          the maximum number of concurrent requests to a single host
+   */
+  public UrlConnectionTransport(int connectTimeout, int readTimeout,
+      int maxConnectionsPerHost) {
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+  }
+
+  @Override
+  public Response get(URL url, Map<String, String> headers, boolean acceptGzip)
+      throws IOException {
+    MainThreadCheck.flagIfOnMainThread("Network request");
+    Semaphore permits = getPermits(url.getHost());
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for " + url);
+    }
+
+    boolean connected = false;
+    try {
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      conn.setConnectTimeout(connectTimeout);
+      conn.setReadTimeout(readTimeout);
+      conn.setUseCaches(false);
+      conn.setDoInput(true);
+      conn.setRequestProperty("Accept-Encoding", acceptGzip ? "gzip"
+          : "identity");
+      if (headers != null) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+          conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+      }
+      conn.connect();
+      Response response = new ConnectionResponse(conn, conn.getResponseCode(),
+          permits);
+      connected = true;
+      return response;
+    } finally {
+      if (!connected) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes that have been transferred by all requests.
+   */
+  public long getTotalBytesRead() {
+    return totalBytesRead.get();
+  }
+
+  private Semaphore getPermits(String host) {
+    Semaphore permits = hostPermits.get(host);
+    if (permits == null) {
+      Semaphore created = new Semaphore(maxConnectionsPerHost);
+      permits = hostPermits.putIfAbsent(host, created);
+      if (permits == null) {
+        permits = created;
+      }
+    }
+    return permits;
+  }
+
+  /**
+   * A response that is read from an {@link HttpURLConnection}.
+   */
+  private class ConnectionResponse implements Response {
+    private final HttpURLConnection conn;
+    private final int statusCode;
+    private final Semaphore permits;
+    private CountingInputStream rawBody;
+    private InputStream body;
+    private boolean closed = false;
+
+    private ConnectionResponse(HttpURLConnection conn, int statusCode,
+        Semaphore permits) {
+      this.conn = conn;
+      this.statusCode = statusCode;
+      this.permits = permits;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return conn.getHeaderField(name);
+    }
+
+    @Override
+    public int getContentLength() {
+      return conn.getContentLength();
+    }
+
+    @Override
+    public synchronized InputStream getBody() throws IOException {
+      if (body == null) {
+        InputStream stream;
+        if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+          stream = conn.getErrorStream();
+        } else {
+          stream = conn.getInputStream();
+        }
+        if (stream == null) {
+          throw new IOException("No body for status " + statusCode);
+        }
+        rawBody = new CountingInputStream(stream);
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+          body = new GZIPInputStream(rawBody);
+        } else {
+          body = rawBody;
+        }
+      }
+      return body;
+    }
+
+    @Override
+    public synchronized long getBytesRead() {
+      return rawBody != null ? rawBody.count : 0;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        // Closing the body, even if it was never read, e.g. for a response
+        // without one, hands the connection back for reuse.
+        getBody().close();
+      } catch (IOException e) {
+        conn.disconnect();
+      } finally {
+        totalBytesRead.addAndGet(getBytesRead());
+        permits.release();
+      }
+    }
+
+    @Override
+    public synchronized void abort() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      conn.disconnect();
+      totalBytesRead.addAndGet(getBytesRead());
+      permits.release();
+    }
+  }
+
+  /**
+   * Counts the bytes that are read through it.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private volatile long count = 0;
+
+    private CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import android.os.Parcel;
+import android.util.Log;
+
+/**
+ * Compares how long marshalling the photos of a {@value #PHOTOS}-photo album
+ * takes, and how many bytes it produces, when every {@link Photo} is
+ * serialized as a Java object into the {@link Parcel}, like it used to be,
+ * and when its fields are written directly. The results are logged.
+ * <p>
+ * This needs the platform's {@link Parcel}, so it runs on a device or
+ * emulator, through the test project in <code>picview/tests</code>.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class PhotoMarshallingBenchmark extends TestCase {
+  private static final String TAG = PhotoMarshallingBenchmark.class
+      .getSimpleName();
+
+  private static final int PHOTOS = 5000;
+  private static final int ROUNDS = 5;
+
+  private List<Photo> album;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    album = new ArrayList<Photo>(PHOTOS);
+    for (int i = 0; i < PHOTOS; ++i) {
+      Photo photo = new Photo();
+      photo.setName("IMG_" + i + ".JPG");
+      photo.setThumbnailUrl("https://lh3.googleusercontent.com/photo/" + i
+          + "/s144-c/IMG_" + i + ".JPG");
+      photo.setImageUrl("https://lh3.googleusercontent.com/photo/" + i
+          + "/s1024/IMG_" + i + ".JPG");
+      album.add(photo);
+    }
+  }
+
+  public void testMarshalling() throws Exception {
+    // The first round warms up both ways, it is not measured.
+    long serializedNanos = 0;
+    long fieldNanos = 0;
+    int serializedBytes = 0;
+    int fieldBytes = 0;
+    for (int round = 0; round <= ROUNDS; ++round) {
+      long start = System.nanoTime();
+      byte[] serialized = marshallSerialized(album);
+      List<Photo> fromSerialized = unmarshallSerialized(serialized);
+      long serializedEnd = System.nanoTime();
+      byte[] fields = marshallFields(album);
+      List<Photo> fromFields = unmarshallFields(fields);
+      long fieldEnd = System.nanoTime();
+
+      assertEquals(album, fromSerialized);
+      assertEquals(album, fromFields);
+      if (round > 0) {
+        serializedNanos += serializedEnd - start;
+        fieldNanos += fieldEnd - serializedEnd;
+      }
+      serializedBytes = serialized.length;
+      fieldBytes = fields.length;
+    }
+    Log.i(TAG, "Serialized: " + millisPerRound(serializedNanos) + " ms, "
+        + serializedBytes + " bytes");
+    Log.i(TAG, "Fields: " + millisPerRound(fieldNanos) + " ms, " + fieldBytes
+        + " bytes");
+  }
+
+  private static long millisPerRound(long nanos) {
+    return nanos / ROUNDS / 1000000L;
+  }
+
+  /**
+   * Marshalls the photos like {@link Photo#writeToParcel(Parcel, int)} did
+   * before, as one serialized Java object per photo.
+   */
+  private static byte[] marshallSerialized(List<Photo> photos)
+      throws IOException {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeInt(photos.size());
+      for (Photo photo : photos) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(photo);
+        output.close();
+        parcel.writeByteArray(bytes.toByteArray());
+      }
+      return parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static List<Photo> unmarshallSerialized(byte[] data)
+      throws IOException, ClassNotFoundException {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(data, 0, data.length);
+      parcel.setDataPosition(0);
+      int size = parcel.readInt();
+      List<Photo> photos = new ArrayList<Photo>(size);
+      for (int i = 0; i < size; ++i) {
+        ObjectInputStream input = new ObjectInputStream(
+            new ByteArrayInputStream(parcel.createByteArray()));
+        photos.add((Photo) input.readObject());
+      }
+      return photos;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static byte[] marshallFields(List<Photo> photos) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeTypedList(photos);
+      return parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static List<Photo> unmarshallFields(byte[] data) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(data, 0, data.length);
+      parcel.setDataPosition(0);
+      return parcel.createTypedArrayList(Photo.CREATOR);
+    } finally {
+      parcel.recycle();
+    }
+  }
+}
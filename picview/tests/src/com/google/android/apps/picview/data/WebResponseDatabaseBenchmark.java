@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.google.android.apps.picview.data.WebResponseCursor.CachedWebResponse;
+import com.google.android.apps.picview.data.WriteBehindQueue.PendingWrite;
+
+/**
+ * Measures how many validator lookups per second the
+ * {@link WebResponseDatabase} serves, compared to the cursor based lookup it
+ * used before. Both run against the same in-memory database of
+ * {@value #ROWS} responses. The results are logged.
+ * <p>
+ * This needs the platform's SQLite, so it runs on a device or emulator,
+ * through the test project in <code>picview/tests</code>.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class WebResponseDatabaseBenchmark extends TestCase {
+  private static final String TAG = WebResponseDatabaseBenchmark.class
+      .getSimpleName();
+
+  private static final int ROWS = 5000;
+  private static final int ROUNDS = 4;
+
+  /** The schema of the table the lookups go to. */
+  private static final String SQL_CREATE = "CREATE TABLE requests (url TEXT "
+      + "PRIMARY KEY, url_hash INTEGER, modified TEXT, etag TEXT, entry TEXT)";
+  private static final String SQL_CREATE_INDEX = "CREATE INDEX "
+      + "requests_url_hash ON requests (url_hash)";
+  /** The query the cursor based lookup ran. */
+  private static final String SQL_CURSOR_QUERY = "SELECT modified, etag FROM "
+      + "requests WHERE url_hash = ? AND url = ?";
+
+  private SQLiteDatabase db;
+  private WebResponseDatabase responseDb;
+  private String[] urls;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    db = SQLiteDatabase.create(null);
+    db.execSQL(SQL_CREATE);
+    db.execSQL(SQL_CREATE_INDEX);
+    responseDb = new WebResponseDatabase(db);
+
+    urls = new String[ROWS];
+    Map<String, PendingWrite> writes = new HashMap<String, PendingWrite>();
+    for (int i = 0; i < ROWS; ++i) {
+      urls[i] = "https://picasaweb.google.com/data/feed/api/user/default/"
+          + "albumid/" + i + "?kind=photo&imgmax=1024";
+      writes.put(urls[i], new PendingWrite("2011-10-17T10:00:00.000Z", "\"e"
+          + i + "\"", true, null));
+    }
+    responseDb.writeAll(Collections.<String> emptySet(), writes);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    db.close();
+    super.tearDown();
+  }
+
+  public void testLookupsPerSecond() {
+    // The first round warms up both lookups, it is not measured.
+    long statementNanos = 0;
+    long cursorNanos = 0;
+    for (int round = 0; round <= ROUNDS; ++round) {
+      long start = System.nanoTime();
+      for (String url : urls) {
+        assertNotNull(responseDb.query(url));
+      }
+      long statementEnd = System.nanoTime();
+      for (String url : urls) {
+        assertNotNull(queryThroughCursor(url));
+      }
+      long cursorEnd = System.nanoTime();
+      if (round > 0) {
+        statementNanos += statementEnd - start;
+        cursorNanos += cursorEnd - statementEnd;
+      }
+    }
+    Log.i(TAG, "Compiled statement: " + perSecond(statementNanos)
+        + " lookups/s");
+    Log.i(TAG, "Cursor: " + perSecond(cursorNanos) + " lookups/s");
+  }
+
+  public void testBothLookupsAgree() {
+    for (int i = 0; i < ROWS; i += 97) {
+      CachedWebResponse expected = queryThroughCursor(urls[i]);
+      CachedWebResponse actual = responseDb.query(urls[i]);
+      assertEquals(expected.modified, actual.modified);
+      assertEquals(expected.etag, actual.etag);
+    }
+    assertNull(responseDb.query("https://picasaweb.google.com/missing"));
+  }
+
+  private long perSecond(long nanos) {
+    return (long) ROWS * ROUNDS * 1000000000L / Math.max(1, nanos);
+  }
+
+  /**
+   * Looks up the validators of the given URL like the database did before its
+   * lookups used a compiled statement.
+   */
+  private CachedWebResponse queryThroughCursor(String url) {
+    Cursor c = db.rawQuery(SQL_CURSOR_QUERY, new String[] {
+        String.valueOf(url.hashCode()), url });
+    try {
+      if (!c.moveToFirst()) {
+        return null;
+      }
+      return new CachedWebResponse(c.getString(0), c.getString(1), null);
+    } finally {
+      c.close();
+    }
+  }
+}
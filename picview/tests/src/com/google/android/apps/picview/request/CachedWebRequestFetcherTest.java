@@ -0,0 +1,281 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.google.android.apps.picview.data.JournaledDiskCache;
+import com.google.android.apps.picview.data.JournaledDiskCache.Editor;
+import com.google.android.apps.picview.data.WebResponseCache;
+import com.google.android.apps.picview.data.WebResponseCursor.CachedWebResponse;
+
+/**
+ * Tests the conditional revalidation of the {@link CachedWebRequestFetcher}.
+ * Responses come from a {@link LoopbackHttpServer} through the real
+ * {@link UrlConnectionTransport}, and are stored in a
+ * {@link JournaledDiskCache} in a temporary directory.
+ * <p>
+ * The fetcher logs through the platform, so these tests run on a device or
+ * emulator, through the test project in <code>picview/tests</code>.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+public class CachedWebRequestFetcherTest extends TestCase {
+  private static final String BODY = "ok:albums";
+  private static final String MODIFIED = "Mon, 17 Oct 2011 10:00:00 GMT";
+  private static final String ETAG = "\"v1\"";
+
+  private File directory;
+  private FakeResponseCache cache;
+  private LoopbackHttpServer server;
+  private CachedWebRequestFetcher fetcher;
+  private URL url;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("responses", "");
+    directory.delete();
+    cache = new FakeResponseCache(JournaledDiskCache.open(directory));
+    server = new LoopbackHttpServer();
+    fetcher = new CachedWebRequestFetcher(cache, new UrlConnectionTransport(
+        5000, 5000, 2));
+    // All fetchers share the parsed responses in memory, so every test uses a
+    // URL of its own.
+    url = server.getUrl("/feed/" + getName());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.shutdown();
+    deleteRecursively(directory);
+    super.tearDown();
+  }
+
+  public void testNotModifiedAfterOk() throws IOException {
+    respond(200, BODY, MODIFIED, ETAG);
+    CachedResponse<String> first = fetcher.cachedFetch(url, false,
+        new TestParser(), null);
+    assertEquals(CachedResponse.NOT_CACHED, first.cacheStatus);
+    assertEquals(BODY, first.content);
+    assertNoValidatorsSent();
+
+    respond(304, null, null, null);
+    CachedResponse<String> second = fetcher.cachedFetch(url, true,
+        new TestParser(), null);
+    assertEquals(CachedResponse.NOT_MODIFIED, second.cacheStatus);
+    assertEquals(BODY, second.content);
+    assertEquals(ETAG, server.getLastHeaders().get("If-None-Match"));
+    assertEquals(MODIFIED, server.getLastHeaders().get("If-Modified-Since"));
+    assertEquals(2, server.getRequestCount());
+  }
+
+  public void testStoresValidators() throws IOException {
+    respond(200, BODY, MODIFIED, ETAG);
+    fetcher.cachedFetch(url, false, new TestParser(), null);
+    CachedWebResponse stored = cache.get(url);
+    assertNotNull(stored);
+    assertEquals(MODIFIED, stored.modified);
+    assertEquals(ETAG, stored.etag);
+
+    // A 304 may send new validators. Those it leaves out are kept.
+    respond(304, null, null, "\"v2\"");
+    fetcher.cachedFetch(url, true, new TestParser(), null);
+    stored = cache.get(url);
+    assertEquals(MODIFIED, stored.modified);
+    assertEquals("\"v2\"", stored.etag);
+  }
+
+  public void testFetchesUnconditionallyIfStoredBodyIsBroken()
+      throws IOException {
+    respond(200, BODY, MODIFIED, ETAG);
+    fetcher.cachedFetch(url, false, new TestParser(), null);
+    write(cache.get(url).body, "broken");
+
+    respond(200, "ok:photos", MODIFIED, "\"v2\"");
+    // A parser of another class, so the response is not served from memory.
+    CachedResponse<String> response = fetcher.cachedFetch(url, false,
+        new TestParser() {
+        }, null);
+    assertEquals(CachedResponse.NOT_CACHED, response.cacheStatus);
+    assertEquals("ok:photos", response.content);
+    assertNoValidatorsSent();
+    assertEquals("\"v2\"", cache.get(url).etag);
+  }
+
+  public void testStoresGzippedBodyDecompressed() throws IOException {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Content-Encoding", "gzip");
+    headers.put("ETag", ETAG);
+    server.respond(200, gzip(BODY), headers);
+    CachedResponse<String> response = fetcher.cachedFetch(url, false,
+        new TestParser(), null);
+    assertEquals(BODY, response.content);
+    assertEquals("gzip", server.getLastHeaders().get("Accept-Encoding"));
+    assertEquals(BODY, read(cache.get(url).body));
+  }
+
+  private void respond(int status, String body, String modified, String etag)
+      throws IOException {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Last-Modified", modified);
+    headers.put("ETag", etag);
+    server.respond(status, body != null ? body.getBytes("UTF-8") : new byte[0],
+        headers);
+  }
+
+  private void assertNoValidatorsSent() {
+    assertNull(server.getLastHeaders().get("If-None-Match"));
+    assertNull(server.getLastHeaders().get("If-Modified-Since"));
+  }
+
+  private static byte[] gzip(String content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = new GZIPOutputStream(bytes);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  private static String read(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void write(File file, String content) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Parses bodies that start with "ok:" into strings, and fails on all others.
+   */
+  private static class TestParser implements ResponseParser<String> {
+    @Override
+    public String parse(InputStream body,
+        PartialResultListener<String> listener) throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = body.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      String content = out.toString("UTF-8");
+      if (!content.startsWith("ok:")) {
+        throw new IOException("Malformed body: " + content);
+      }
+      return content;
+    }
+  }
+
+  /**
+   * Stores the bodies in a {@link JournaledDiskCache} and the validators in a
+   * map, instead of the database.
+   */
+  private static class FakeResponseCache implements WebResponseCache {
+    private final JournaledDiskCache diskCache;
+    private final Map<String, CachedWebResponse> validators = new HashMap<String, CachedWebResponse>();
+
+    private FakeResponseCache(JournaledDiskCache diskCache) {
+      this.diskCache = diskCache;
+    }
+
+    @Override
+    public CachedWebResponse get(URL url) {
+      File body = diskCache.get(url.toString());
+      if (body == null) {
+        return null;
+      }
+      CachedWebResponse stored = getValidators(url);
+      if (stored == null) {
+        return new CachedWebResponse(null, null, body);
+      }
+      return new CachedWebResponse(stored.modified, stored.etag, body);
+    }
+
+    @Override
+    public CachedWebResponse getValidators(URL url) {
+      return validators.get(url.toString());
+    }
+
+    @Override
+    public boolean putValidators(URL url, String modified, String etag) {
+      validators.put(url.toString(), new CachedWebResponse(modified, etag,
+          null));
+      return true;
+    }
+
+    @Override
+    public Editor edit(URL url) {
+      return diskCache.edit(url.toString());
+    }
+
+    @Override
+    public boolean commit(URL url, Editor editor, String modified,
+        String etag) {
+      return editor.commit() && putValidators(url, modified, etag);
+    }
+
+    @Override
+    public void updateValidators(URL url, String modified, String etag) {
+      CachedWebResponse stored = getValidators(url);
+      if (stored != null) {
+        putValidators(url, modified != null ? modified : stored.modified,
+            etag != null ? etag : stored.etag);
+      }
+    }
+  }
+}
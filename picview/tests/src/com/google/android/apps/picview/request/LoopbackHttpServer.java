@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.picview.request;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A minimal HTTP server on a loopback port, so tests can go through the real
+ * {@link UrlConnectionTransport}. It answers every request with the response
+ * set last, and records the headers of the request.
+ * <p>
+ * Connections are served one at a time and closed after the response.
+ * 
+ * @author haeberling@google.com (Sascha Haeberling)
+ */
+class LoopbackHttpServer {
+  private final ServerSocket serverSocket;
+  private final Thread thread;
+
+  private int status = 404;
+  private byte[] body = new byte[0];
+  private Map<String, String> responseHeaders = new HashMap<String, String>();
+  private Map<String, String> lastHeaders;
+  private int requestCount = 0;
+
+  /**
+   * Starts the server on a free port of the loopback interface.
+   */
+  LoopbackHttpServer() throws IOException {
+    serverSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        serve();
+      }
+    }, "LoopbackHttpServer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the URL of the given path on this server.
+   */
+  URL getUrl(String path) throws MalformedURLException {
+    return new URL("http", "127.0.0.1", serverSocket.getLocalPort(), path);
+  }
+
+  /**
+   * Sets the response to answer the following requests with. Headers whose
+   * value is <code>null</code> are left out.
+   */
+  synchronized void respond(int status, byte[] body,
+      Map<String, String> headers) {
+    this.status = status;
+    this.body = body;
+    responseHeaders = new LinkedHashMap<String, String>(headers);
+  }
+
+  /**
+   * Returns the headers of the last request, keyed by their name as sent.
+   */
+  synchronized Map<String, String> getLastHeaders() {
+    return lastHeaders;
+  }
+
+  /**
+   * Returns the number of requests served so far.
+   */
+  synchronized int getRequestCount() {
+    return requestCount;
+  }
+
+  /**
+   * Stops accepting connections and waits for the server thread to end.
+   */
+  void shutdown() throws IOException, InterruptedException {
+    serverSocket.close();
+    thread.join();
+  }
+
+  private void serve() {
+    while (true) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        // The server socket was closed by shutdown().
+        return;
+      }
+      try {
+        handle(socket);
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Nothing left to answer on this connection.
+        }
+      }
+    }
+  }
+
+  private void handle(Socket socket) throws IOException {
+    InputStream in = new BufferedInputStream(socket.getInputStream());
+    if (readLine(in) == null) {
+      return;
+    }
+    Map<String, String> headers = new HashMap<String, String>();
+    String line;
+    while ((line = readLine(in)) != null && line.length() > 0) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim(), line.substring(colon + 1)
+            .trim());
+      }
+    }
+
+    StringBuilder head = new StringBuilder();
+    byte[] content;
+    synchronized (this) {
+      lastHeaders = headers;
+      requestCount++;
+      head.append("HTTP/1.1 ").append(status).append(" Test\r\n");
+      for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+        if (header.getValue() != null) {
+          head.append(header.getKey()).append(": ").append(header.getValue())
+              .append("\r\n");
+        }
+      }
+      // A 304 has no body.
+      content = status == 304 ? new byte[0] : body;
+      if (status != 304) {
+        head.append("Content-Length: ").append(content.length).append("\r\n");
+      }
+    }
+    head.append("Connection: close\r\n\r\n");
+
+    OutputStream out = socket.getOutputStream();
+    out.write(head.toString().getBytes("ISO-8859-1"));
+    out.write(content);
+    out.flush();
+  }
+
+  /**
+   * Reads a line terminated by CRLF, or returns <code>null</code> at the end
+   * of the stream.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        String result = line.toString("ISO-8859-1");
+        return result.endsWith("\r") ? result.substring(0,
+            result.length() - 1) : result;
+      }
+      line.write(b);
+    }
+    return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+  }
+}